@@ -0,0 +1,140 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderProcessorClient;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderProcessorGrpc;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time per order for a fridge to drain a full outbox into a co-located order processor, by outbox batch size.
+ * Each invocation starts a fridge on an outbox of {@link #ORDERS} pending orders and ends once all receipts are in.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderOutboxDrainBenchmark {
+
+    private static final int ORDERS = 256;
+    private static final Duration ASK_TIMEOUT = Duration.ofSeconds(5);
+
+    @Param({"1", "8", "32", "128"})
+    int batchSize;
+
+    @Param({"10ms"})
+    String drainInterval;
+
+    private Path directory;
+    private OrderProcessorServer processor;
+    private ActorSystem<Guardian.Command> system;
+    private ProductCatalog catalog;
+    private String fridgeName;
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        directory = Files.createTempDirectory("outbox-benchmark");
+        processor = OrderProcessorServer.startInProcess(OrderProcessorClient.IN_PROCESS_NAME,
+                ConfigFactory.parseMap(Map.of("ledger.directory", directory.resolve("ledger").toString()))
+                        .atPath("order-processor")
+                        .withFallback(ConfigFactory.load()));
+
+        Config config = ConfigFactory.parseMap(Map.of(
+                        "fridge.outbox.directory", directory.resolve("outbox").toString(),
+                        "fridge.outbox.batch-size", batchSize,
+                        "fridge.outbox.drain-interval", drainInterval,
+                        "order-processor.mode", "colocated",
+                        "order-processor.max-batch-size", batchSize))
+                .atPath("home-automation")
+                .withFallback(ConfigFactory.load());
+        system = ActorSystem.create(Guardian.create(), "outbox-benchmark", config);
+        catalog = new ProductCatalog();
+    }
+
+    @Setup(Level.Invocation)
+    public void fillOutbox() throws IOException {
+        fridgeName = "fridge-" + invocation++;
+        Product milk = catalog.register("Milk", new BigDecimal("1.99"), 1.0);
+        try (OrderOutbox outbox = OrderOutbox.open(directory.resolve("outbox"), fridgeName, catalog)) {
+            for (int i = 0; i < ORDERS; i++) {
+                outbox.append(new Order(List.of(new OrderItem(milk, 1))));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException, IOException {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().join();
+        processor.stop();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ORDERS)
+    public int drain() throws InterruptedException {
+        ActorRef<Fridge.FridgeCommand> fridge = AskPattern.<Guardian.Command, ActorRef<Fridge.FridgeCommand>>ask(system,
+                replyTo -> new Guardian.StartFridge(fridgeName, catalog, replyTo), ASK_TIMEOUT, system.scheduler())
+                .toCompletableFuture().join();
+
+        int receipts;
+        do {
+            Thread.sleep(1);
+            receipts = AskPattern.<Fridge.FridgeCommand, Fridge.OrderHistoryResponse>ask(fridge,
+                            Fridge.GetOrderHistory::new, ASK_TIMEOUT, system.scheduler())
+                    .toCompletableFuture().join()
+                    .getReceipts().size();
+        } while (receipts < ORDERS);
+
+        system.tell(new Guardian.StopFridge(fridge));
+        return receipts;
+    }
+
+    /** Starts and stops the fridges of the benchmark. */
+    static final class Guardian {
+        interface Command {}
+
+        record StartFridge(String name, ProductCatalog catalog, ActorRef<ActorRef<Fridge.FridgeCommand>> replyTo)
+                implements Command {}
+
+        record StopFridge(ActorRef<Fridge.FridgeCommand> fridge) implements Command {}
+
+        static Behavior<Command> create() {
+            GrpcMetrics metrics = new GrpcMetrics(OrderProcessorGrpc.getServiceDescriptor());
+            return Behaviors.receive((context, command) -> {
+                if (command instanceof StartFridge start) {
+                    start.replyTo().tell(context.spawn(
+                            Fridge.create(start.name(), 1_000_000, 1_000_000, start.catalog(), metrics), start.name()));
+                } else if (command instanceof StopFridge stop) {
+                    context.stop(stop.fridge());
+                }
+                return Behaviors.same();
+            });
+        }
+    }
+}
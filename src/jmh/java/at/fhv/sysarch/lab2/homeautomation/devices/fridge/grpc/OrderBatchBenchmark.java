@@ -0,0 +1,51 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import akka.actor.typed.ActorSystem;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receipts per second against {@code max-batch-size} for orders handed over at once, like an outbox drain.
+ * Streaming is off, so a batch size of 1 is a unary call per order rather than the stream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderBatchBenchmark {
+
+    private static final int ORDERS = 128;
+
+    @Param({"1", "8", "32", "128"})
+    int maxBatchSize;
+
+    private OrderProcessorServer server;
+    private ActorSystem<Void> system;
+    private OrderProcessorClient client;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = OrderProcessorBenchmarks.startProcessor(false);
+        system = OrderProcessorBenchmarks.clientSystem(Map.of("streaming", false, "max-batch-size", maxBatchSize));
+        client = OrderProcessorBenchmarks.client(system);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        client.shutdown();
+        system.terminate();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ORDERS)
+    public void processOrders() {
+        OrderProcessorBenchmarks.awaitAll(client.processOrders(OrderProcessorBenchmarks.orders(ORDERS)));
+    }
+}
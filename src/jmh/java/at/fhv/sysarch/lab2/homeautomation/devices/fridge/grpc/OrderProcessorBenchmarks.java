@@ -0,0 +1,96 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.*;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+
+/** Processor and client setups shared by the order benchmarks. */
+final class OrderProcessorBenchmarks {
+
+    static final int PORT = 18101;
+
+    private OrderProcessorBenchmarks() {}
+
+    static OrderProcessorServer startProcessor(boolean colocated) throws IOException {
+        return startProcessor(colocated, processorConfig(ledgerDirectory(), Map.of()));
+    }
+
+    static OrderProcessorServer startProcessor(boolean colocated, Config config) throws IOException {
+        return colocated
+                ? OrderProcessorServer.startInProcess(OrderProcessorClient.IN_PROCESS_NAME, config)
+                : OrderProcessorServer.startOnPort(PORT, config);
+    }
+
+    /** Processor settings with the ledger in the given directory, on top of application.conf. */
+    static Config processorConfig(Path ledgerDirectory, Map<String, Object> overrides) {
+        Map<String, Object> settings = new HashMap<>(overrides);
+        settings.put("ledger.directory", ledgerDirectory.toString());
+        return ConfigFactory.parseMap(settings).atPath("order-processor").withFallback(ConfigFactory.load());
+    }
+
+    static Path ledgerDirectory() throws IOException {
+        return Files.createTempDirectory("ledger-benchmark");
+    }
+
+    // Forcing a segment on tmpfs costs next to nothing, so the ledger writer does not bound the throughput
+    static Path tmpfsLedgerDirectory() throws IOException {
+        Path shm = Path.of("/dev/shm");
+        return Files.isDirectory(shm) ? Files.createTempDirectory(shm, "ledger-benchmark") : ledgerDirectory();
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    static ActorSystem<Void> clientSystem(Map<String, Object> overrides) {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("endpoints", "localhost:" + PORT);
+        settings.putAll(overrides);
+
+        Config config = ConfigFactory.parseMap(settings).atPath("home-automation.order-processor")
+                .withFallback(ConfigFactory.load());
+        return ActorSystem.create(Behaviors.empty(), "order-benchmark", config);
+    }
+
+    static OrderProcessorClient client(ActorSystem<?> system) {
+        return new OrderProcessorClient(system, new ProductCatalog(), new GrpcMetrics(OrderProcessorGrpc.getServiceDescriptor()));
+    }
+
+    // Fresh order ids on every call, the processor answers repeated ids from its idempotency cache.
+    // The product id is one of prices.conf, the processor rejects products missing from its price list.
+    static List<Order> orders(int count) {
+        Product milk = new Product("milk", "Milk", new BigDecimal("1.99"), 1.0);
+        List<Order> orders = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            orders.add(new Order(List.of(new OrderItem(milk, 1))));
+        }
+        return orders;
+    }
+
+    static void awaitAll(List<CompletionStage<Receipt>> receipts) {
+        CompletableFuture.allOf(receipts.stream()
+                .map(CompletionStage::toCompletableFuture)
+                .toArray(CompletableFuture[]::new)).join();
+    }
+}
@@ -0,0 +1,45 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import akka.actor.typed.ActorSystem;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Latency of one order at a time in the remote and the co-located mode. */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderProcessorModeBenchmark {
+
+    @Param({"remote", "colocated"})
+    String mode;
+
+    private OrderProcessorServer server;
+    private ActorSystem<Void> system;
+    private OrderProcessorClient client;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = OrderProcessorBenchmarks.startProcessor(mode.equals("colocated"));
+        system = OrderProcessorBenchmarks.clientSystem(Map.of("mode", mode));
+        client = OrderProcessorBenchmarks.client(system);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        client.shutdown();
+        system.terminate();
+        server.stop();
+    }
+
+    @Benchmark
+    public Object processOrder() {
+        return client.processOrder(OrderProcessorBenchmarks.orders(1).get(0)).toCompletableFuture().join();
+    }
+}
@@ -0,0 +1,65 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import akka.actor.typed.ActorSystem;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Order;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Receipt;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders per second against the number of pricing workers of a co-located processor. The ledger lies on
+ * tmpfs where available, on a disk every order would wait for the single ledger writer's force instead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderProcessorWorkersBenchmark {
+
+    private static final int WINDOW = 256;
+
+    @Param({"1", "2", "4", "8"})
+    int workers;
+
+    private Path ledgerDirectory;
+    private OrderProcessorServer server;
+    private ActorSystem<Void> system;
+    private OrderProcessorClient client;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        ledgerDirectory = OrderProcessorBenchmarks.tmpfsLedgerDirectory();
+        server = OrderProcessorBenchmarks.startProcessor(true,
+                OrderProcessorBenchmarks.processorConfig(ledgerDirectory, Map.of("workers", workers)));
+        system = OrderProcessorBenchmarks.clientSystem(Map.of("mode", "colocated", "max-batch-size", 1));
+        client = OrderProcessorBenchmarks.client(system);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException, IOException {
+        client.shutdown();
+        system.terminate();
+        server.stop();
+        OrderProcessorBenchmarks.delete(ledgerDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public void processOrders() {
+        List<CompletionStage<Receipt>> receipts = new ArrayList<>(WINDOW);
+        for (Order order : OrderProcessorBenchmarks.orders(WINDOW)) {
+            receipts.add(client.processOrder(order));
+        }
+        OrderProcessorBenchmarks.awaitAll(receipts);
+    }
+}
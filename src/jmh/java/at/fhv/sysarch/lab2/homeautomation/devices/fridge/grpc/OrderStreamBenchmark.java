@@ -0,0 +1,57 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import akka.actor.typed.ActorSystem;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Order;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Receipt;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/** Orders per second over the ProcessOrders stream against unary calls, batching off. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderStreamBenchmark {
+
+    private static final int WINDOW = 64;
+
+    @Param({"true", "false"})
+    boolean streaming;
+
+    private OrderProcessorServer server;
+    private ActorSystem<Void> system;
+    private OrderProcessorClient client;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = OrderProcessorBenchmarks.startProcessor(false);
+        system = OrderProcessorBenchmarks.clientSystem(Map.of("streaming", streaming, "max-batch-size", 1));
+        client = OrderProcessorBenchmarks.client(system);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        client.shutdown();
+        system.terminate();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public void processOrders() {
+        List<CompletionStage<Receipt>> receipts = new ArrayList<>(WINDOW);
+        for (Order order : OrderProcessorBenchmarks.orders(WINDOW)) {
+            receipts.add(client.processOrder(order));
+        }
+        OrderProcessorBenchmarks.awaitAll(receipts);
+    }
+}
@@ -0,0 +1,86 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import at.fhv.sysarch.lab2.homeautomation.environment.telemetry.TemperatureBatch;
+import at.fhv.sysarch.lab2.homeautomation.environment.telemetry.WeatherBatch;
+import at.fhv.sysarch.lab2.homeautomation.environment.telemetry.WeatherCondition;
+import com.google.protobuf.MessageLite;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second through the JSON and binary decoding of the MQTT path, run with {@code -prof gc} for
+ * allocations. Binary payloads carry a batch of {@code samples} readings, JSON payloads a single one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EnvironmentPayloadDecoderBenchmark {
+
+    private final byte[] temperature = ("{\"sensor\":\"living-room\",\"unit\":\"Celsius\","
+            + "\"timestamp\":1714564800000,\"value\":21.5}").getBytes(StandardCharsets.UTF_8);
+    private final byte[] weather = ("{\"sensor\":\"living-room\",\"timestamp\":1714564800000,"
+            + "\"condition\":\"cloudy\"}").getBytes(StandardCharsets.UTF_8);
+
+    @State(Scope.Thread)
+    public static class BinaryPayloads {
+
+        @Param({"1", "32"})
+        int samples;
+
+        byte[] temperatures;
+        byte[] conditions;
+        double temperatureSum;
+        int conditionSum;
+
+        @Setup
+        public void encode() throws IOException {
+            TemperatureBatch.Builder temperatureBatch = TemperatureBatch.newBuilder().setStartTimeMs(1714564800000L);
+            WeatherBatch.Builder weatherBatch = WeatherBatch.newBuilder().setStartTimeMs(1714564800000L);
+            for (int i = 0; i < samples; i++) {
+                temperatureBatch.addOffsetsMs(i * 1000).addValues(21.5f + i * 0.1f);
+                weatherBatch.addOffsetsMs(i * 1000).addConditions(WeatherCondition.CLOUDY);
+            }
+            temperatures = withHeader(temperatureBatch.build());
+            conditions = withHeader(weatherBatch.build());
+        }
+
+        private static byte[] withHeader(MessageLite batch) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(BinaryPayloadDecoder.MARKER);
+            out.write(BinaryPayloadDecoder.VERSION);
+            batch.writeTo(out);
+            return out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public double readTemperature() throws IOException {
+        return EnvironmentPayloadDecoder.readDouble(temperature, "value");
+    }
+
+    @Benchmark
+    public EnvironmentSimulator.WeatherCondition readWeather() throws IOException {
+        return EnvironmentPayloadDecoder.readCondition(weather, "condition");
+    }
+
+    @Benchmark
+    public double readBinaryTemperatures(BinaryPayloads payloads) {
+        BinaryPayloadDecoder.readTemperatures(payloads.temperatures, 0,
+                (timestampMillis, value) -> payloads.temperatureSum += value);
+        return payloads.temperatureSum;
+    }
+
+    @Benchmark
+    public int readBinaryConditions(BinaryPayloads payloads) {
+        BinaryPayloadDecoder.readConditions(payloads.conditions, 0,
+                (timestampMillis, condition) -> payloads.conditionSum += condition.ordinal());
+        return payloads.conditionSum;
+    }
+}
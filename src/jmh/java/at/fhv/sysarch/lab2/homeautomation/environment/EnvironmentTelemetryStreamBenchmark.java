@@ -0,0 +1,138 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.stream.Materializer;
+import com.typesafe.config.Config;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Offers readings to the telemetry stream at a baseline rate and at a tenfold burst. The score is the rate
+ * actually kept, the stream counters show how much was accepted, conflated and left queued, and the heap after
+ * the latest collection should stay flat across iterations. Add {@code -prof gc} for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 10, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnvironmentTelemetryStreamBenchmark {
+
+    private static final int DEVICES = 200;
+    // Every device reporting five times a second
+    private static final int BASELINE_RATE = DEVICES * 5;
+    private static final int SAMPLE_EVERY = 1024;
+
+    /** Multiple of the baseline rate offered. */
+    @Param({"1", "10"})
+    int load;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Offers {
+        public long accepted;
+        public long refused;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            accepted = 0;
+            refused = 0;
+        }
+    }
+
+    // Sampled while offering, the last sample of an iteration is reported
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Stream {
+        public long queued;
+        public long conflated;
+        public long heapAfterGcMiB;
+    }
+
+    private ActorSystem<Void> system;
+    private EnvironmentStreamMetrics metrics;
+    private EnvironmentTelemetryStream stream;
+    private String[] topics;
+    private byte[][] payloads;
+    private long intervalNanos;
+    private long startNanos;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void start() {
+        system = ActorSystem.create(Behaviors.empty(), "telemetry-benchmark");
+        Config config = system.settings().config().getConfig("home-automation.environment.stream");
+        metrics = new EnvironmentStreamMetrics();
+        stream = EnvironmentTelemetryStream.start(config, Materializer.createMaterializer(system),
+                system.executionContext(), metrics, system.log(),
+                List.of("home/+/room/+/temperature"), List.of("home/+/room/+/weather"), new DeviceRegistry(),
+                system.systemActorOf(Behaviors.ignore(), "temperature-listener", Props.empty()),
+                system.systemActorOf(Behaviors.ignore(), "weather-listener", Props.empty()));
+
+        topics = new String[DEVICES];
+        payloads = new byte[DEVICES][];
+        for (int i = 0; i < DEVICES; i++) {
+            topics[i] = "home/benchmark/room/room-" + i + "/temperature";
+            payloads[i] = ("{\"value\":" + (18 + i % 8) + ".5}").getBytes(StandardCharsets.UTF_8);
+        }
+        intervalNanos = TimeUnit.SECONDS.toNanos(1) / ((long) BASELINE_RATE * load);
+    }
+
+    // Every iteration keeps its own schedule, time spent between iterations is not made up as a burst
+    @Setup(Level.Iteration)
+    public void schedule() {
+        startNanos = System.nanoTime();
+        next = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        stream.stop();
+        system.terminate();
+    }
+
+    @Benchmark
+    public boolean offer(Offers offers, Stream counters) {
+        long wait = startNanos + next * intervalNanos - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+
+        int device = (int) (next++ % DEVICES);
+        boolean accepted = stream.offer(topics[device], payloads[device]);
+        if (accepted) {
+            offers.accepted++;
+        } else {
+            offers.refused++;
+        }
+
+        if (next % SAMPLE_EVERY == 0) {
+            counters.queued = metrics.getQueueSize();
+            counters.conflated = metrics.getConflated();
+            counters.heapAfterGcMiB = heapAfterGc() >> 20;
+        }
+        return accepted;
+    }
+
+    private static long heapAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterGc != null) {
+                used += afterGc.getUsed();
+            }
+        }
+        return used;
+    }
+}
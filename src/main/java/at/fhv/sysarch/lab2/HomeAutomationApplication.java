@@ -4,17 +4,30 @@ import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
 import akka.actor.typed.javadsl.Adapter;
 import at.fhv.sysarch.lab2.homeautomation.HomeAutomation;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilterMetrics;
 import at.fhv.sysarch.lab2.homeautomation.devices.ac.AirCondition;
 import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Fridge;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.ProductCatalog;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderProcessorClient;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderProcessorGrpc;
 import at.fhv.sysarch.lab2.homeautomation.devices.media.MediaStation;
 import at.fhv.sysarch.lab2.homeautomation.devices.weather.Blinds;
 import at.fhv.sysarch.lab2.homeautomation.devices.weather.WeatherSensor;
+import at.fhv.sysarch.lab2.homeautomation.environment.EmbeddedMqttBroker;
+import at.fhv.sysarch.lab2.homeautomation.environment.EnvironmentStreamMetrics;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetricsBinder;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeriesStore;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import jakarta.annotation.PreDestroy;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
@@ -26,10 +39,60 @@ public class HomeAutomationApplication {
 
     private ActorRef<HomeAutomation.Command> homeAutomationRef;
 
+    private OrderProcessorServer colocatedOrderProcessor;
+
+    private EmbeddedMqttBroker embeddedMqttBroker;
+
+    @Bean
+    public ProductCatalog productCatalog() {
+        return new ProductCatalog();
+    }
+
+    @Bean
+    public GrpcMetrics orderProcessorClientMetrics() {
+        return new GrpcMetrics(OrderProcessorGrpc.getServiceDescriptor());
+    }
+
+    @Bean
+    public GrpcMetricsBinder orderProcessorClientMetricsBinder(GrpcMetrics orderProcessorClientMetrics) {
+        return new GrpcMetricsBinder(orderProcessorClientMetrics, "grpc.client");
+    }
+
+    @Bean
+    public EnvironmentStreamMetrics environmentStreamMetrics() {
+        return new EnvironmentStreamMetrics();
+    }
+
+    @Bean
+    public SensorFilterMetrics sensorFilterMetrics() {
+        return new SensorFilterMetrics();
+    }
+
+    @Bean
+    public TimeSeriesStore timeSeriesStore() {
+        return new TimeSeriesStore(ConfigFactory.load().getConfig("home-automation.timeseries"));
+    }
+
     @Bean
     @Primary
-    public ActorSystem<HomeAutomation.Command> homeAutomationActorSystem() {
-        homeAutomationSystem = ActorSystem.create(HomeAutomation.create(), "HomeAutomation");
+    public ActorSystem<HomeAutomation.Command> homeAutomationActorSystem(ProductCatalog productCatalog,
+                                                                         GrpcMetrics orderProcessorClientMetrics,
+                                                                         EnvironmentStreamMetrics environmentStreamMetrics,
+                                                                         SensorFilterMetrics sensorFilterMetrics,
+                                                                         TimeSeriesStore timeSeriesStore) throws IOException {
+        Config config = ConfigFactory.load();
+        if (OrderProcessorClient.isColocated(config.getConfig("home-automation.order-processor"))) {
+            colocatedOrderProcessor = OrderProcessorServer.startInProcess(OrderProcessorClient.IN_PROCESS_NAME);
+        }
+        Config mqttConfig = config.getConfig("home-automation.environment.mqtt");
+        if (EmbeddedMqttBroker.isEnabled(mqttConfig)) {
+            embeddedMqttBroker = EmbeddedMqttBroker.start(mqttConfig);
+        }
+
+        homeAutomationSystem = ActorSystem.create(
+                HomeAutomation.create(productCatalog, orderProcessorClientMetrics, environmentStreamMetrics,
+                        sensorFilterMetrics, timeSeriesStore),
+                "HomeAutomation");
         homeAutomationRef = homeAutomationSystem;
 
         homeAutomationRef.tell(new HomeAutomation.Start());
@@ -118,10 +181,16 @@ public class HomeAutomationApplication {
     }
 
     @PreDestroy
-    public void terminateActorSystem() {
+    public void terminateActorSystem() throws InterruptedException {
         if (homeAutomationSystem != null) {
             homeAutomationSystem.terminate();
         }
+        if (colocatedOrderProcessor != null) {
+            colocatedOrderProcessor.stop();
+        }
+        if (embeddedMqttBroker != null) {
+            embeddedMqttBroker.stop();
+        }
     }
 
     public static void main(String[] args) {
@@ -3,13 +3,20 @@ package at.fhv.sysarch.lab2.homeautomation;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.javadsl.*;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilterMetrics;
 import at.fhv.sysarch.lab2.homeautomation.devices.ac.AirCondition;
 import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Fridge;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.ProductCatalog;
 import at.fhv.sysarch.lab2.homeautomation.devices.media.MediaStation;
 import at.fhv.sysarch.lab2.homeautomation.devices.weather.Blinds;
 import at.fhv.sysarch.lab2.homeautomation.devices.weather.WeatherSensor;
+import at.fhv.sysarch.lab2.homeautomation.environment.DeviceRegistry;
 import at.fhv.sysarch.lab2.homeautomation.environment.EnvironmentSimulator;
+import at.fhv.sysarch.lab2.homeautomation.environment.EnvironmentStreamMetrics;
 import at.fhv.sysarch.lab2.homeautomation.environment.MqttEnvironmentSource;
+import at.fhv.sysarch.lab2.homeautomation.environment.TraceReplaySource;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeriesStore;
 
 import java.util.Optional;
 
@@ -20,7 +27,7 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
     public static final class Start implements Command {}
 
     public static final class SwitchEnvironmentSource implements Command {
-        public enum SourceType { INTERNAL, EXTERNAL, MANUAL }
+        public enum SourceType { INTERNAL, EXTERNAL, MANUAL, REPLAY }
 
         final SourceType sourceType;
 
@@ -29,6 +36,17 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
         }
     }
 
+    /** Switches to the REPLAY source with a trace and speed other than the configured ones. */
+    public static final class ReplayEnvironmentTrace implements Command {
+        final String file;
+        final double speed;
+
+        public ReplayEnvironmentTrace(String file, double speed) {
+            this.file = file;
+            this.speed = speed;
+        }
+    }
+
     public static final class SetEnvironmentValues implements Command {
         final Optional<Double> temperature;
         final Optional<EnvironmentSimulator.WeatherCondition> weatherCondition;
@@ -42,37 +60,49 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
 
     private static final class ForwardTemperature implements Command {
         final double temperature;
+        final long timestampMillis;
 
-        private ForwardTemperature(double temperature) {
+        private ForwardTemperature(double temperature, long timestampMillis) {
             this.temperature = temperature;
+            this.timestampMillis = timestampMillis;
         }
     }
 
-    public static Behavior<Command> create() {
-        return Behaviors.setup(HomeAutomation::new);
+    public static Behavior<Command> create(ProductCatalog productCatalog, GrpcMetrics orderProcessorMetrics,
+                                           EnvironmentStreamMetrics environmentStreamMetrics,
+                                           SensorFilterMetrics sensorFilterMetrics,
+                                           TimeSeriesStore history) {
+        return Behaviors.setup(context ->
+                new HomeAutomation(context, productCatalog, orderProcessorMetrics, environmentStreamMetrics,
+                        sensorFilterMetrics, history));
     }
 
     private final ActorRef<EnvironmentSimulator.EnvironmentCommand> environmentSimulator;
     private final ActorRef<MqttEnvironmentSource.MqttCommand> mqttEnvironmentSource;
+    private final ActorRef<TraceReplaySource.ReplayCommand> traceReplaySource;
     private final ActorRef<AirCondition.AirConditionCommand> airCondition;
     private final ActorRef<Blinds.BlindsCommand> blinds;
     private final ActorRef<WeatherSensor.WeatherCommand> weatherSensor;
     private final ActorRef<MediaStation.MediaCommand> mediaStation;
     private final ActorRef<Fridge.FridgeCommand> fridge;
+    private final DeviceRegistry environmentDevices = new DeviceRegistry();
     private SwitchEnvironmentSource.SourceType currentEnvironmentSource =
             SwitchEnvironmentSource.SourceType.INTERNAL;
 
-    private HomeAutomation(ActorContext<Command> context) {
+    private HomeAutomation(ActorContext<Command> context, ProductCatalog productCatalog, GrpcMetrics orderProcessorMetrics,
+                           EnvironmentStreamMetrics environmentStreamMetrics, SensorFilterMetrics sensorFilterMetrics,
+                           TimeSeriesStore history) {
         super(context);
 
         this.blinds = context.spawn(Blinds.create("living-room"), "blinds");
 
         this.weatherSensor = context.spawn(
-                WeatherSensor.create(blinds),
+                WeatherSensor.create("living-room", blinds, sensorFilterMetrics,
+                        history.series("weather/living-room")),
                 "weather-sensor");
 
         this.airCondition = context.spawn(
-                AirCondition.create("living-room"),
+                AirCondition.create("living-room", sensorFilterMetrics, history.series("temperature/living-room")),
                 "air-condition");
 
         ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureAdapter =
@@ -81,7 +111,7 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
                         msg -> {
                             if (msg instanceof EnvironmentSimulator.TemperatureUpdate) {
                                 EnvironmentSimulator.TemperatureUpdate update = (EnvironmentSimulator.TemperatureUpdate) msg;
-                                return new ForwardTemperature(update.getTemperature());
+                                return new ForwardTemperature(update.getTemperature(), update.getTimestampMillis());
                             }
                             return new Command() {};
                         });
@@ -92,7 +122,7 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
                         msg -> {
                             if (msg instanceof EnvironmentSimulator.WeatherUpdate) {
                                 EnvironmentSimulator.WeatherUpdate update = (EnvironmentSimulator.WeatherUpdate) msg;
-                                weatherSensor.tell(new WeatherSensor.EnvironmentWeatherUpdate(update.getCondition()));
+                                weatherSensor.tell(new WeatherSensor.EnvironmentWeatherUpdate(update.getCondition(), update.getTimestampMillis()));
                             }
                             return new Command() {};
                         });
@@ -101,26 +131,58 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
                 EnvironmentSimulator.create(temperatureAdapter, weatherAdapter),
                 "environment-simulator");
 
+        // Readings on per-room topics of the living room go straight to its devices
+        environmentDevices.registerTemperatureDevice("living-room", context.spawn(
+                forwardTemperature(airCondition), "living-room-temperature"));
+        environmentDevices.registerWeatherDevice("living-room", context.spawn(
+                forwardWeather(weatherSensor), "living-room-weather"));
+
         this.mqttEnvironmentSource = context.spawn(
-                MqttEnvironmentSource.create(temperatureAdapter, weatherAdapter),
+                MqttEnvironmentSource.create(temperatureAdapter, weatherAdapter, environmentStreamMetrics,
+                        environmentDevices),
                 "mqtt-environment-source");
 
+        this.traceReplaySource = context.spawn(
+                TraceReplaySource.create(temperatureAdapter, weatherAdapter, environmentDevices),
+                "trace-replay-source");
+
         this.mediaStation = context.spawn(
                 MediaStation.create("living-room", blinds),
                 "media-station");
 
         this.fridge = context.spawn(
-                Fridge.create("kitchen", 30.0, 50, "localhost"),
+                Fridge.create("kitchen", 30.0, 50, productCatalog, orderProcessorMetrics),
                 "fridge");
 
         getContext().getLog().info("Home Automation system initialized");
     }
 
+    private static Behavior<EnvironmentSimulator.TemperatureCommand> forwardTemperature(
+            ActorRef<AirCondition.AirConditionCommand> airCondition) {
+        return Behaviors.receive(EnvironmentSimulator.TemperatureCommand.class)
+                .onMessage(EnvironmentSimulator.TemperatureUpdate.class, update -> {
+                    airCondition.tell(new AirCondition.EnvironmentTemperature(update.getTemperature(), update.getTimestampMillis()));
+                    return Behaviors.same();
+                })
+                .build();
+    }
+
+    private static Behavior<EnvironmentSimulator.WeatherCommand> forwardWeather(
+            ActorRef<WeatherSensor.WeatherCommand> weatherSensor) {
+        return Behaviors.receive(EnvironmentSimulator.WeatherCommand.class)
+                .onMessage(EnvironmentSimulator.WeatherUpdate.class, update -> {
+                    weatherSensor.tell(new WeatherSensor.EnvironmentWeatherUpdate(update.getCondition(), update.getTimestampMillis()));
+                    return Behaviors.same();
+                })
+                .build();
+    }
+
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
                 .onMessage(Start.class, this::onStart)
                 .onMessage(SwitchEnvironmentSource.class, this::onSwitchEnvironmentSource)
+                .onMessage(ReplayEnvironmentTrace.class, this::onReplayEnvironmentTrace)
                 .onMessage(SetEnvironmentValues.class, this::onSetEnvironmentValues)
                 .onMessage(ForwardTemperature.class, this::onForwardTemperature)
                 .build();
@@ -153,13 +215,28 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
             case MANUAL:
                 getContext().getLog().info("Switching to manual environment values");
                 break;
+
+            case REPLAY:
+                getContext().getLog().info("Switching to replay of the configured environment trace");
+                traceReplaySource.tell(new TraceReplaySource.Start(Optional.empty(), Optional.empty()));
+                break;
         }
 
         return this;
     }
 
+    private Behavior<Command> onReplayEnvironmentTrace(ReplayEnvironmentTrace msg) {
+        stopCurrentEnvironmentSource();
+
+        currentEnvironmentSource = SwitchEnvironmentSource.SourceType.REPLAY;
+        getContext().getLog().info("Switching to replay of environment trace {} at {}x speed", msg.file, msg.speed);
+        traceReplaySource.tell(new TraceReplaySource.Start(Optional.of(msg.file), Optional.of(msg.speed)));
+
+        return this;
+    }
+
     private Behavior<Command> onForwardTemperature(ForwardTemperature msg) {
-        airCondition.tell(new AirCondition.EnrichedTemperature(msg.temperature, "Celsius"));
+        airCondition.tell(new AirCondition.EnvironmentTemperature(msg.temperature, msg.timestampMillis));
         return this;
     }
 
@@ -195,6 +272,10 @@ public class HomeAutomation extends AbstractBehavior<HomeAutomation.Command> {
 
             case MANUAL:
                 break;
+
+            case REPLAY:
+                traceReplaySource.tell(new TraceReplaySource.Stop());
+                break;
         }
     }
 }
\ No newline at end of file
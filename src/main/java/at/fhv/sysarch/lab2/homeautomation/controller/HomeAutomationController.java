@@ -11,11 +11,20 @@ import at.fhv.sysarch.lab2.homeautomation.devices.media.MediaStation;
 import at.fhv.sysarch.lab2.homeautomation.devices.weather.Blinds;
 import at.fhv.sysarch.lab2.homeautomation.devices.weather.WeatherSensor;
 import at.fhv.sysarch.lab2.homeautomation.environment.EnvironmentSimulator;
+import at.fhv.sysarch.lab2.homeautomation.environment.TelemetryTrace;
+import at.fhv.sysarch.lab2.homeautomation.environment.TraceReplaySource;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeries;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeriesStore;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.CompletionStage;
 
@@ -29,7 +38,22 @@ public class HomeAutomationController {
     private final ActorRef<WeatherSensor.WeatherCommand> weatherSensor;
     private final ActorRef<MediaStation.MediaCommand> mediaStation;
     private final ActorRef<Fridge.FridgeCommand> fridge;
+    private final ProductCatalog productCatalog;
+    private final TimeSeriesStore timeSeriesStore;
     private final Scheduler scheduler;
+    private final Path traceDirectory;
+
+    private static final Duration ORDER_TIMEOUT = Duration.ofSeconds(10);
+    // Time left for the fridge to turn a missed order deadline into an answer before the ask times out
+    private static final Duration ORDER_REPLY_MARGIN = Duration.ofMillis(500);
+    private static final Duration DEFAULT_HISTORY_RANGE = Duration.ofHours(1);
+    private static final Duration DEFAULT_EXPORT_RANGE = Duration.ofDays(1);
+    private static final String INVALID_TIME = "Invalid time, use ISO-8601 instants such as 2024-05-01T12:00:00Z";
+    // Fewest windows a rollup query should return, the coarsest resolution still giving that many is used
+    private static final int DEFAULT_ROLLUP_WINDOWS = 60;
+    // Samples per history page, larger limits are cut to the maximum
+    private static final int DEFAULT_HISTORY_LIMIT = 1_000;
+    private static final int MAX_HISTORY_LIMIT = 10_000;
 
     public HomeAutomationController(
             ActorSystem<HomeAutomation.Command> actorSystem,
@@ -38,14 +62,20 @@ public class HomeAutomationController {
             ActorRef<Blinds.BlindsCommand> blinds,
             ActorRef<WeatherSensor.WeatherCommand> weatherSensor,
             ActorRef<MediaStation.MediaCommand> mediaStation,
-            ActorRef<Fridge.FridgeCommand> fridge) {
+            ActorRef<Fridge.FridgeCommand> fridge,
+            ProductCatalog productCatalog,
+            TimeSeriesStore timeSeriesStore) {
         this.homeAutomation = homeAutomation;
         this.airCondition = airCondition;
         this.blinds = blinds;
         this.weatherSensor = weatherSensor;
         this.mediaStation = mediaStation;
         this.fridge = fridge;
+        this.productCatalog = productCatalog;
+        this.timeSeriesStore = timeSeriesStore;
         this.scheduler = actorSystem.scheduler();
+        this.traceDirectory = Paths.get(
+                actorSystem.settings().config().getString("home-automation.environment.replay.directory"));
     }
 
     // Environment endpoints
@@ -56,20 +86,38 @@ public class HomeAutomationController {
 
         try {
             sourceType = HomeAutomation.SwitchEnvironmentSource.SourceType.valueOf(type.toUpperCase());
-            if (sourceType == HomeAutomation.SwitchEnvironmentSource.SourceType.MANUAL) {
-                airCondition.tell(new AirCondition.SwitchSensorMode(false));
-            } else {
-                airCondition.tell(new AirCondition.SwitchSensorMode(true));
-            }
+            // A replay feeds the sensors environment updates, simulation ticks would record random readings
+            // between them
+            boolean simulate = sourceType != HomeAutomation.SwitchEnvironmentSource.SourceType.MANUAL
+                    && sourceType != HomeAutomation.SwitchEnvironmentSource.SourceType.REPLAY;
+            airCondition.tell(new AirCondition.SwitchSensorMode(simulate));
 
         } catch (IllegalArgumentException e) {
-            return ResponseEntity.badRequest().body("Invalid source type. Use INTERNAL, EXTERNAL, or MANUAL");
+            return ResponseEntity.badRequest().body("Invalid source type. Use INTERNAL, EXTERNAL, MANUAL, or REPLAY");
         }
 
         homeAutomation.tell(new HomeAutomation.SwitchEnvironmentSource(sourceType));
         return ResponseEntity.ok("Switched to " + type + " environment source");
     }
 
+    @PostMapping("/environment/replay")
+    public ResponseEntity<String> replayEnvironmentTrace(@RequestParam String file,
+                                                         @RequestParam(defaultValue = "1") double speed) {
+        if (speed < TraceReplaySource.MIN_SPEED || speed > TraceReplaySource.MAX_SPEED) {
+            return ResponseEntity.badRequest().body("Invalid speed. Use a value between "
+                    + TraceReplaySource.MIN_SPEED + " and " + TraceReplaySource.MAX_SPEED);
+        }
+        try {
+            TelemetryTrace.resolve(traceDirectory, file);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+
+        airCondition.tell(new AirCondition.SwitchSensorMode(false));
+        homeAutomation.tell(new HomeAutomation.ReplayEnvironmentTrace(file, speed));
+        return ResponseEntity.ok("Replaying trace " + file + " at " + speed + "x speed");
+    }
+
     @PostMapping("/environment/temperature")
     public ResponseEntity<String> setTemperature(@RequestParam double value) {
         homeAutomation.tell(new HomeAutomation.SetEnvironmentValues(
@@ -90,6 +138,165 @@ public class HomeAutomationController {
         }
     }
 
+    // Sensor history endpoints, weather conditions are reported as their ordinal
+
+    @GetMapping("/history")
+    public ResponseEntity<List<Map<String, Object>>> getHistorySeries() {
+        List<Map<String, Object>> seriesList = new ArrayList<>();
+        for (String name : timeSeriesStore.getNames()) {
+            timeSeriesStore.find(name).ifPresent(series -> {
+                Map<String, Object> seriesMap = new HashMap<>();
+                seriesMap.put("name", name);
+                seriesMap.put("samples", series.size());
+                seriesMap.put("bytes", series.sizeBytes());
+                seriesMap.put("late", series.lateSamples());
+                seriesList.add(seriesMap);
+            });
+        }
+        return ResponseEntity.ok(seriesList);
+    }
+
+    @PostMapping("/history/export")
+    public ResponseEntity<Map<String, Object>> exportHistory(
+            @RequestParam String file,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to) {
+        Optional<TimeRange> range = TimeRange.parse(from, to, DEFAULT_EXPORT_RANGE);
+        if (range.isEmpty()) {
+            return ResponseEntity.badRequest().body(errorBody(INVALID_TIME));
+        }
+        Instant rangeFrom = range.get().from;
+        Instant rangeTo = range.get().to;
+
+        try {
+            Path trace = TelemetryTrace.resolve(traceDirectory, file);
+            long records = TelemetryTrace.export(timeSeriesStore, rangeFrom.toEpochMilli(), rangeTo.toEpochMilli(), trace);
+
+            Map<String, Object> exportMap = new HashMap<>();
+            exportMap.put("file", file);
+            exportMap.put("from", rangeFrom.toString());
+            exportMap.put("to", rangeTo.toString());
+            exportMap.put("records", records);
+            return ResponseEntity.ok(exportMap);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(errorBody(e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().body(errorBody("Failed to write trace: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping("/history/{type}/{sensor}")
+    public ResponseEntity<Map<String, Object>> getHistory(
+            @PathVariable String type,
+            @PathVariable String sensor,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to,
+            @RequestParam(defaultValue = "" + DEFAULT_HISTORY_LIMIT) int limit) {
+        Optional<TimeSeries> series = timeSeriesStore.find(type + "/" + sensor);
+        if (series.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Optional<TimeRange> range = TimeRange.parse(from, to, DEFAULT_HISTORY_RANGE);
+        if (range.isEmpty()) {
+            return ResponseEntity.badRequest().body(errorBody(INVALID_TIME));
+        }
+        if (limit <= 0) {
+            return ResponseEntity.badRequest().body(errorBody("limit must be positive"));
+        }
+        Instant rangeFrom = range.get().from;
+        Instant rangeTo = range.get().to;
+        int pageSize = Math.min(limit, MAX_HISTORY_LIMIT);
+
+        // Samples past the page are only counted, the first of them is where the next page starts
+        List<Map<String, Object>> samples = new ArrayList<>();
+        long[] next = {Long.MIN_VALUE};
+        series.get().range(rangeFrom.toEpochMilli(), rangeTo.toEpochMilli(), (timestamp, value) -> {
+            if (samples.size() < pageSize) {
+                Map<String, Object> sampleMap = new HashMap<>();
+                sampleMap.put("timestamp", Instant.ofEpochMilli(timestamp).toString());
+                sampleMap.put("value", value);
+                samples.add(sampleMap);
+            } else if (next[0] == Long.MIN_VALUE) {
+                next[0] = timestamp;
+            }
+        });
+
+        Map<String, Object> history = new HashMap<>();
+        history.put("series", series.get().getName());
+        history.put("from", rangeFrom.toString());
+        history.put("to", rangeTo.toString());
+        history.put("samples", samples);
+        if (next[0] != Long.MIN_VALUE) {
+            history.put("next", Instant.ofEpochMilli(next[0]).toString());
+        }
+        return ResponseEntity.ok(history);
+    }
+
+    @GetMapping("/history/{type}/{sensor}/rollup")
+    public ResponseEntity<Map<String, Object>> getRollup(
+            @PathVariable String type,
+            @PathVariable String sensor,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to,
+            @RequestParam(defaultValue = "" + DEFAULT_ROLLUP_WINDOWS) int windows) {
+        Optional<TimeSeries> series = timeSeriesStore.find(type + "/" + sensor);
+        if (series.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Optional<TimeRange> range = TimeRange.parse(from, to, DEFAULT_HISTORY_RANGE);
+        if (range.isEmpty()) {
+            return ResponseEntity.badRequest().body(errorBody(INVALID_TIME));
+        }
+        Instant rangeFrom = range.get().from;
+        Instant rangeTo = range.get().to;
+        if (rangeFrom.isAfter(rangeTo)) {
+            return ResponseEntity.badRequest().body(errorBody("from must not be after to"));
+        }
+        if (windows <= 0) {
+            return ResponseEntity.badRequest().body(errorBody("windows must be positive"));
+        }
+
+        Optional<TimeSeries.Aggregates> aggregates =
+                series.get().aggregate(rangeFrom.toEpochMilli(), rangeTo.toEpochMilli(), windows);
+        if (aggregates.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        List<Map<String, Object>> windowList = new ArrayList<>();
+        for (TimeSeries.Aggregate aggregate : aggregates.get().windows) {
+            Map<String, Object> windowMap = new HashMap<>();
+            windowMap.put("start", Instant.ofEpochMilli(aggregate.startMillis).toString());
+            windowMap.put("min", aggregate.min);
+            windowMap.put("max", aggregate.max);
+            windowMap.put("avg", aggregate.avg);
+            windowMap.put("count", aggregate.count);
+            windowList.add(windowMap);
+        }
+
+        Map<String, Object> rollup = new HashMap<>();
+        rollup.put("series", series.get().getName());
+        rollup.put("from", rangeFrom.toString());
+        rollup.put("to", rangeTo.toString());
+        rollup.put("resolution", aggregates.get().resolution.toString());
+        rollup.put("windows", windowList);
+        return ResponseEntity.ok(rollup);
+    }
+
+    @GetMapping("/history/{type}/{sensor}/last")
+    public ResponseEntity<Map<String, Object>> getLastValue(@PathVariable String type, @PathVariable String sensor) {
+        return timeSeriesStore.find(type + "/" + sensor)
+                .flatMap(TimeSeries::last)
+                .map(sample -> {
+                    Map<String, Object> sampleMap = new HashMap<>();
+                    sampleMap.put("timestamp", Instant.ofEpochMilli(sample.timestampMillis).toString());
+                    sampleMap.put("value", sample.value);
+                    return ResponseEntity.ok(sampleMap);
+                })
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
     // AC endpoints
 
     @PostMapping("/ac/power")
@@ -232,6 +439,17 @@ public class HomeAutomationController {
                 item.put("price", product.getPrice());
                 item.put("weight", product.getWeight());
                 item.put("quantity", quantity);
+
+                List<Map<String, Object>> lots = new ArrayList<>();
+                result.getLots(product).forEach(lot -> {
+                    Map<String, Object> lotMap = new HashMap<>();
+                    lotMap.put("id", lot.getId());
+                    lotMap.put("quantity", lot.getQuantity());
+                    lotMap.put("bestBefore", lot.getBestBefore().toString());
+                    lots.add(lotMap);
+                });
+                item.put("lots", lots);
+
                 products.add(item);
             });
 
@@ -269,14 +487,24 @@ public class HomeAutomationController {
             @RequestParam double weight,
             @RequestParam int quantity) {
 
-        Product product = new Product(name, price, weight);
+        Product product;
+        try {
+            product = productCatalog.register(name, price, weight);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> responseMap = new HashMap<>();
+            responseMap.put("success", false);
+            responseMap.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(responseMap);
+        }
         List<OrderItem> items = Collections.singletonList(new OrderItem(product, quantity));
 
+        Instant deadline = Instant.now().plus(ORDER_TIMEOUT).minus(ORDER_REPLY_MARGIN);
+
         CompletionStage<Fridge.OrderResponse> response =
                 AskPattern.ask(
                         fridge,
-                        replyTo -> new Fridge.OrderProducts(items, replyTo),
-                        Duration.ofSeconds(10),
+                        replyTo -> new Fridge.OrderProducts(items, deadline, replyTo),
+                        ORDER_TIMEOUT,
                         scheduler
                 );
 
@@ -314,6 +542,39 @@ public class HomeAutomationController {
         }).toCompletableFuture().join();
     }
 
+    @GetMapping("/fridge/analytics")
+    public ResponseEntity<Map<String, Object>> getFridgeAnalytics() {
+        CompletionStage<Fridge.AnalyticsResponse> response =
+                AskPattern.ask(
+                        fridge,
+                        Fridge.GetAnalytics::new,
+                        Duration.ofSeconds(5),
+                        scheduler
+                );
+
+        return response.thenApply(result -> {
+            Map<String, Object> analytics = new HashMap<>();
+
+            List<Map<String, Object>> forecasts = new ArrayList<>();
+            result.getForecasts().forEach(forecast -> {
+                Map<String, Object> forecastMap = new HashMap<>();
+                forecastMap.put("id", forecast.getProduct().getId());
+                forecastMap.put("name", forecast.getProduct().getName());
+                forecastMap.put("quantity", forecast.getCurrentQuantity());
+                forecastMap.put("totalConsumed", forecast.getTotalConsumed());
+                forecastMap.put("consumptionPerDay", forecast.getConsumptionPerDay());
+                forecastMap.put("daysUntilEmpty", Double.isInfinite(forecast.getDaysUntilEmpty())
+                        ? null : forecast.getDaysUntilEmpty());
+                forecastMap.put("reorderPoint", forecast.getReorderPoint());
+                forecastMap.put("reorderQuantity", forecast.getReorderQuantity());
+                forecasts.add(forecastMap);
+            });
+
+            analytics.put("forecasts", forecasts);
+            return ResponseEntity.ok(analytics);
+        }).toCompletableFuture().join();
+    }
+
     @GetMapping("/fridge/history")
     public ResponseEntity<Map<String, Object>> getOrderHistory() {
         CompletionStage<Fridge.OrderHistoryResponse> response =
@@ -374,4 +635,31 @@ public class HomeAutomationController {
             return ResponseEntity.ok(history);
         }).toCompletableFuture().join();
     }
+
+    private static Map<String, Object> errorBody(String message) {
+        Map<String, Object> errorMap = new HashMap<>();
+        errorMap.put("error", message);
+        return errorMap;
+    }
+
+    // Query range of the history endpoints, ending now and spanning the default range when not given
+    private static final class TimeRange {
+        final Instant from;
+        final Instant to;
+
+        private TimeRange(Instant from, Instant to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        static Optional<TimeRange> parse(String from, String to, Duration defaultRange) {
+            try {
+                Instant rangeTo = to != null ? Instant.parse(to) : Instant.now();
+                Instant rangeFrom = from != null ? Instant.parse(from) : rangeTo.minus(defaultRange);
+                return Optional.of(new TimeRange(rangeFrom, rangeTo));
+            } catch (DateTimeParseException e) {
+                return Optional.empty();
+            }
+        }
+    }
 }
\ No newline at end of file
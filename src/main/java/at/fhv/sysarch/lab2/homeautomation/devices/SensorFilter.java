@@ -0,0 +1,73 @@
+package at.fhv.sysarch.lab2.homeautomation.devices;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
+
+import java.util.Objects;
+import java.util.function.BiPredicate;
+
+/**
+ * Decides which readings a sensor forwards to its actuator, by the time of the readings, so replayed and
+ * batched readings are spaced as they were taken. Confined to the owning actor.
+ */
+public final class SensorFilter<T> {
+
+    private final BiPredicate<T, T> changed;
+    private final long minIntervalMillis;
+    private final long maxSilenceMillis;
+    private final SensorFilterMetrics.Stats stats;
+    private T lastForwarded;
+    private long lastForwardedMillis;
+
+    private SensorFilter(BiPredicate<T, T> changed, Config config, SensorFilterMetrics.Stats stats) {
+        this.changed = changed;
+        this.minIntervalMillis = config.getDuration("min-interval").toMillis();
+        long maxSilence = config.getDuration("max-silence").toMillis();
+        this.maxSilenceMillis = maxSilence == 0 ? Long.MAX_VALUE : maxSilence;
+        this.stats = stats;
+    }
+
+    /** Settings of one sensor: its entry under {@code sensors} over the defaults of its type. */
+    public static Config settings(Config filters, String type, String sensorId) {
+        String path = ConfigUtil.joinPath("sensors", sensorId, type);
+        Config defaults = filters.getConfig(type);
+        return filters.hasPath(path) ? filters.getConfig(path).withFallback(defaults) : defaults;
+    }
+
+    /** Forwards numbers that moved more than {@code deadband} away from the last forwarded one. */
+    public static SensorFilter<Double> deadband(Config config, SensorFilterMetrics.Stats stats) {
+        double deadband = config.getDouble("deadband");
+        return new SensorFilter<>((last, value) -> Math.abs(value - last) > deadband, config, stats);
+    }
+
+    /** Forwards values that are not equal to the last forwarded one. */
+    public static <T> SensorFilter<T> onChange(Config config, SensorFilterMetrics.Stats stats) {
+        return new SensorFilter<>((last, value) -> !Objects.equals(last, value), config, stats);
+    }
+
+    /** Whether to forward the reading taken at {@code timestampMillis}, it becomes the new reference if so. */
+    public boolean shouldForward(T value, long timestampMillis) {
+        boolean forward;
+        if (lastForwarded == null) {
+            forward = true;
+        } else {
+            long elapsed = timestampMillis - lastForwardedMillis;
+            forward = elapsed >= maxSilenceMillis
+                    || (elapsed >= minIntervalMillis && changed.test(lastForwarded, value));
+        }
+
+        if (forward) {
+            forwarded(value, timestampMillis);
+        } else {
+            stats.suppressed.increment();
+        }
+        return forward;
+    }
+
+    /** Records a reading forwarded without filtering, such as manual input, as the new reference. */
+    public void forwarded(T value, long timestampMillis) {
+        stats.forwarded.increment();
+        lastForwarded = value;
+        lastForwardedMillis = timestampMillis;
+    }
+}
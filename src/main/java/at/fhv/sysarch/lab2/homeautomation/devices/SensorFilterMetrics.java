@@ -0,0 +1,62 @@
+package at.fhv.sysarch.lab2.homeautomation.devices;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Readings forwarded and suppressed by the sensor filters, published through Micrometer. */
+public class SensorFilterMetrics implements MeterBinder {
+
+    public static final class Stats {
+        final LongAdder forwarded = new LongAdder();
+        final LongAdder suppressed = new LongAdder();
+
+        public long getForwarded() {
+            return forwarded.sum();
+        }
+
+        public long getSuppressed() {
+            return suppressed.sum();
+        }
+
+        /** Share of the readings that were not forwarded, 0 before the first reading. */
+        public double getSuppressionRatio() {
+            long suppressed = getSuppressed();
+            long total = suppressed + getForwarded();
+            return total == 0 ? 0.0 : (double) suppressed / total;
+        }
+    }
+
+    private final Stats temperature = new Stats();
+    private final Stats weather = new Stats();
+
+    public Stats getTemperature() {
+        return temperature;
+    }
+
+    public Stats getWeather() {
+        return weather;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        bind(registry, "temperature", temperature);
+        bind(registry, "weather", weather);
+    }
+
+    private static void bind(MeterRegistry registry, String sensor, Stats stats) {
+        FunctionCounter.builder("sensor.filter.forwarded", stats, Stats::getForwarded)
+                .tag("sensor", sensor)
+                .register(registry);
+        FunctionCounter.builder("sensor.filter.suppressed", stats, Stats::getSuppressed)
+                .tag("sensor", sensor)
+                .register(registry);
+        Gauge.builder("sensor.filter.suppression.ratio", stats, Stats::getSuppressionRatio)
+                .tag("sensor", sensor)
+                .description("Share of sensor readings not forwarded to the actuator")
+                .register(registry);
+    }
+}
@@ -7,6 +7,8 @@ import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 import akka.actor.typed.ActorRef;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilterMetrics;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeries;
 
 public class AirCondition extends AbstractBehavior<AirCondition.AirConditionCommand> {
 
@@ -15,12 +17,15 @@ public class AirCondition extends AbstractBehavior<AirCondition.AirConditionComm
     private final ActorRef<TemperatureSensor.TemperatureCommand> tempSensor;
     private Boolean isOn = false;
 
-    public AirCondition(ActorContext<AirConditionCommand> context, String identifier) {
+    public AirCondition(ActorContext<AirConditionCommand> context, String identifier, SensorFilterMetrics filterMetrics,
+                        TimeSeries temperatureHistory) {
         super(context);
         this.identifier = identifier;
 
         //Create Temperature sensor
-        this.tempSensor = context.spawn(TemperatureSensor.create(getContext().getSelf()), "temperatureSensor");
+        this.tempSensor = context.spawn(TemperatureSensor.create(identifier, getContext().getSelf(), filterMetrics,
+                        temperatureHistory),
+                "temperatureSensor");
 
         // Start Temperatur sensor in Simulationsmode
         this.tempSensor.tell(new TemperatureSensor.SwitchMode(true));
@@ -47,8 +52,20 @@ public class AirCondition extends AbstractBehavior<AirCondition.AirConditionComm
         }
     }
 
-    public static Behavior<AirConditionCommand> create(String identifier) {
-        return Behaviors.setup(context -> new AirCondition(context, identifier));
+    // Environment readings pass the sensor's filter before they reach the air condition
+    public static final class EnvironmentTemperature implements AirConditionCommand {
+        final double value;
+        final long timestampMillis;
+
+        public EnvironmentTemperature(double value, long timestampMillis) {
+            this.value = value;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+
+    public static Behavior<AirConditionCommand> create(String identifier, SensorFilterMetrics filterMetrics,
+                                                       TimeSeries temperatureHistory) {
+        return Behaviors.setup(context -> new AirCondition(context, identifier, filterMetrics, temperatureHistory));
     }
 
     public boolean isOn() {
@@ -60,6 +77,7 @@ public class AirCondition extends AbstractBehavior<AirCondition.AirConditionComm
     public Receive<AirConditionCommand> createReceive() {
         return newReceiveBuilder()
                 .onMessage(EnrichedTemperature.class, this::onReadTemperature)
+                .onMessage(EnvironmentTemperature.class, this::onEnvironmentTemperature)
                 .onMessage(PowerAirCondition.class, this::onPowerCommand)
                 .onMessage(SwitchSensorMode.class, this::onSwitchSensorMode)
                 .onMessage(GetStatus.class, this::onGetStatus)
@@ -101,6 +119,11 @@ public class AirCondition extends AbstractBehavior<AirCondition.AirConditionComm
         return Behaviors.same();
     }
 
+    private Behavior<AirConditionCommand> onEnvironmentTemperature(EnvironmentTemperature cmd) {
+        tempSensor.tell(new TemperatureSensor.EnvironmentTemperatureUpdate(cmd.value, cmd.timestampMillis));
+        return Behaviors.same();
+    }
+
     private Behavior<AirConditionCommand> onSwitchSensorMode(SwitchSensorMode cmd) {
         getContext().getLog().info("Switching sensor mode to {}", cmd.simulate ? "SIMULATION" : "MANUAL");
         tempSensor.tell(new TemperatureSensor.SwitchMode(cmd.simulate));
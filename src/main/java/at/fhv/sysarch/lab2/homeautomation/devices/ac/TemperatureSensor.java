@@ -4,6 +4,9 @@ import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.*;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilter;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilterMetrics;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeries;
 
 import java.time.Duration;
 
@@ -31,9 +34,15 @@ public class TemperatureSensor extends AbstractBehavior<TemperatureSensor.Temper
 
     public static final class EnvironmentTemperatureUpdate implements TemperatureCommand {
         final double temperature;
+        final long timestampMillis;
 
         public EnvironmentTemperatureUpdate(double temperature) {
+            this(temperature, System.currentTimeMillis());
+        }
+
+        public EnvironmentTemperatureUpdate(double temperature, long timestampMillis) {
             this.temperature = temperature;
+            this.timestampMillis = timestampMillis;
         }
 
         public double getTemperature() {
@@ -41,22 +50,34 @@ public class TemperatureSensor extends AbstractBehavior<TemperatureSensor.Temper
         }
     }
 
-    public static Behavior<TemperatureCommand> create(ActorRef<AirCondition.AirConditionCommand> airCondition) {
+    public static Behavior<TemperatureCommand> create(String identifier,
+                                                      ActorRef<AirCondition.AirConditionCommand> airCondition,
+                                                      SensorFilterMetrics filterMetrics,
+                                                      TimeSeries history) {
         return Behaviors.setup(context -> Behaviors.withTimers(timers ->
-                new TemperatureSensor(context, airCondition, timers)
+                new TemperatureSensor(context, identifier, airCondition, timers, filterMetrics, history)
         ));
     }
 
     private final ActorRef<AirCondition.AirConditionCommand> airCondition;
     private final TimerScheduler<TemperatureCommand> timers;
+    private final SensorFilter<Double> filter;
+    private final TimeSeries history;
     private boolean simulateMode = false;
 
     private TemperatureSensor(ActorContext<TemperatureCommand> context,
+                              String identifier,
                               ActorRef<AirCondition.AirConditionCommand> airCondition,
-                              TimerScheduler<TemperatureCommand> timers) {
+                              TimerScheduler<TemperatureCommand> timers,
+                              SensorFilterMetrics filterMetrics,
+                              TimeSeries history) {
         super(context);
         this.airCondition = airCondition;
         this.timers = timers;
+        this.history = history;
+        this.filter = SensorFilter.deadband(SensorFilter.settings(
+                context.getSystem().settings().config().getConfig("home-automation.sensor-filters"),
+                "temperature", identifier), filterMetrics.getTemperature());
 
         getContext().getLog().info("TemperatureSensor started in manual mode");
     }
@@ -75,6 +96,9 @@ public class TemperatureSensor extends AbstractBehavior<TemperatureSensor.Temper
     private Behavior<TemperatureCommand> onReadTemperature(ReadTemperature r) {
         if (!simulateMode) {
             getContext().getLog().info("Manual temperature input: {}", r.value);
+            long now = System.currentTimeMillis();
+            history.record(now, r.value);
+            filter.forwarded(r.value, now);
             airCondition.tell(new AirCondition.EnrichedTemperature(r.value, "Celsius"));
         }
         return this;
@@ -98,14 +122,20 @@ public class TemperatureSensor extends AbstractBehavior<TemperatureSensor.Temper
         if (simulateMode) {
             double simulated = 20 + Math.random() * 10; // 20–30°C
             getContext().getLog().info("Simulated temperature: {}", simulated);
-            airCondition.tell(new AirCondition.EnrichedTemperature(simulated, "Celsius"));
+            long now = System.currentTimeMillis();
+            history.record(now, simulated);
+            if (filter.shouldForward(simulated, now)) {
+                airCondition.tell(new AirCondition.EnrichedTemperature(simulated, "Celsius"));
+            }
         }
         return this;
     }
 
+    // Forwarded in both modes, environment readings only arrive while an environment source is active
     private Behavior<TemperatureCommand> onEnvironmentTemperatureUpdate(EnvironmentTemperatureUpdate msg) {
-        if (simulateMode) {
-            getContext().getLog().info("Environment temperature update: {}", msg.getTemperature());
+        getContext().getLog().debug("Environment temperature update: {}", msg.getTemperature());
+        history.record(msg.timestampMillis, msg.getTemperature());
+        if (filter.shouldForward(msg.getTemperature(), msg.timestampMillis)) {
             airCondition.tell(new AirCondition.EnrichedTemperature(msg.getTemperature(), "Celsius"));
         }
         return this;
@@ -0,0 +1,158 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Consumption rate estimate per product as an exponentially weighted moving average. Not thread-safe. */
+public class ConsumptionForecaster {
+
+    private static final double MILLIS_PER_DAY = Duration.ofDays(1).toMillis();
+
+    private final double tauMillis;
+    private final double leadTimeMillis;
+    private final double coverageMillis;
+    private final double safetyFactor;
+    private final int minReorderPoint;
+    private final int minReorderQuantity;
+
+    private final Map<Product, Integer> slots = new HashMap<>();
+    private double[] ratePerMilli = new double[16];
+    private long[] lastConsumption = new long[16];
+    private long[] totalConsumed = new long[16];
+
+    public ConsumptionForecaster(Duration halfLife, Duration leadTime, Duration coverage, double safetyFactor,
+                                 int minReorderPoint, int minReorderQuantity) {
+        this.tauMillis = halfLife.toMillis() / Math.log(2);
+        this.leadTimeMillis = leadTime.toMillis();
+        this.coverageMillis = coverage.toMillis();
+        this.safetyFactor = safetyFactor;
+        this.minReorderPoint = minReorderPoint;
+        this.minReorderQuantity = minReorderQuantity;
+    }
+
+    public void recordConsumption(Product product, int quantity, long nowMillis) {
+        int slot = slotOf(product);
+        long last = lastConsumption[slot];
+
+        if (last > 0 && nowMillis > last) {
+            double elapsed = nowMillis - last;
+            double alpha = 1.0 - Math.exp(-elapsed / tauMillis);
+            ratePerMilli[slot] += alpha * (quantity / elapsed - ratePerMilli[slot]);
+        }
+
+        lastConsumption[slot] = nowMillis;
+        totalConsumed[slot] += quantity;
+    }
+
+    public double ratePerDay(Product product, long nowMillis) {
+        Integer slot = slots.get(product);
+        if (slot == null) {
+            return 0.0;
+        }
+
+        double rate = ratePerMilli[slot];
+        double idle = nowMillis - lastConsumption[slot];
+
+        // Only let the estimate decay once the product has been idle for longer than the averaging horizon
+        if (idle > tauMillis) {
+            rate *= Math.exp(-(idle - tauMillis) / tauMillis);
+        }
+
+        return rate * MILLIS_PER_DAY;
+    }
+
+    public int reorderPoint(Product product, long nowMillis) {
+        double perMilli = ratePerDay(product, nowMillis) / MILLIS_PER_DAY;
+        double demandDuringLeadTime = perMilli * leadTimeMillis;
+        return Math.max(minReorderPoint, (int) Math.ceil(demandDuringLeadTime * (1.0 + safetyFactor)));
+    }
+
+    public int reorderQuantity(Product product, long nowMillis) {
+        double perMilli = ratePerDay(product, nowMillis) / MILLIS_PER_DAY;
+        return Math.max(minReorderQuantity, (int) Math.ceil(perMilli * coverageMillis));
+    }
+
+    public Forecast forecast(Product product, int currentQuantity, long nowMillis) {
+        double ratePerDay = ratePerDay(product, nowMillis);
+        Integer slot = slots.get(product);
+
+        return new Forecast(
+                product,
+                currentQuantity,
+                slot == null ? 0 : totalConsumed[slot],
+                ratePerDay,
+                ratePerDay > 0 ? currentQuantity / ratePerDay : Double.POSITIVE_INFINITY,
+                reorderPoint(product, nowMillis),
+                reorderQuantity(product, nowMillis)
+        );
+    }
+
+    private int slotOf(Product product) {
+        Integer slot = slots.get(product);
+        if (slot != null) {
+            return slot;
+        }
+
+        int newSlot = slots.size();
+        if (newSlot == ratePerMilli.length) {
+            int capacity = newSlot * 2;
+            ratePerMilli = Arrays.copyOf(ratePerMilli, capacity);
+            lastConsumption = Arrays.copyOf(lastConsumption, capacity);
+            totalConsumed = Arrays.copyOf(totalConsumed, capacity);
+        }
+        slots.put(product, newSlot);
+
+        return newSlot;
+    }
+
+    public static final class Forecast {
+        private final Product product;
+        private final int currentQuantity;
+        private final long totalConsumed;
+        private final double consumptionPerDay;
+        private final double daysUntilEmpty;
+        private final int reorderPoint;
+        private final int reorderQuantity;
+
+        public Forecast(Product product, int currentQuantity, long totalConsumed, double consumptionPerDay,
+                        double daysUntilEmpty, int reorderPoint, int reorderQuantity) {
+            this.product = product;
+            this.currentQuantity = currentQuantity;
+            this.totalConsumed = totalConsumed;
+            this.consumptionPerDay = consumptionPerDay;
+            this.daysUntilEmpty = daysUntilEmpty;
+            this.reorderPoint = reorderPoint;
+            this.reorderQuantity = reorderQuantity;
+        }
+
+        public Product getProduct() {
+            return product;
+        }
+
+        public int getCurrentQuantity() {
+            return currentQuantity;
+        }
+
+        public long getTotalConsumed() {
+            return totalConsumed;
+        }
+
+        public double getConsumptionPerDay() {
+            return consumptionPerDay;
+        }
+
+        public double getDaysUntilEmpty() {
+            return daysUntilEmpty;
+        }
+
+        public int getReorderPoint() {
+            return reorderPoint;
+        }
+
+        public int getReorderQuantity() {
+            return reorderQuantity;
+        }
+    }
+}
@@ -3,10 +3,20 @@ package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.eventstream.EventStream;
 import akka.actor.typed.javadsl.*;
 import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderProcessorClient;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.CompletionStage;
 
@@ -36,10 +46,24 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
 
     public static final class OrderProducts implements FridgeCommand {
         final List<OrderItem> items;
+        final Instant deadline;
+        final Product reorder;
         final ActorRef<OrderResponse> replyTo;
 
         public OrderProducts(List<OrderItem> items, ActorRef<OrderResponse> replyTo) {
+            this(items, null, replyTo);
+        }
+
+        /** The order fails once the deadline passes without a receipt, it stays queued for retry. */
+        public OrderProducts(List<OrderItem> items, Instant deadline, ActorRef<OrderResponse> replyTo) {
+            this(items, deadline, null, replyTo);
+        }
+
+        private OrderProducts(List<OrderItem> items, Instant deadline, Product reorder,
+                              ActorRef<OrderResponse> replyTo) {
             this.items = new ArrayList<>(items);
+            this.deadline = deadline;
+            this.reorder = reorder;
             this.replyTo = replyTo;
         }
     }
@@ -72,31 +96,89 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
         }
     }
 
+    private static final class OrderFailed implements FridgeCommand {
+        final String orderId;
+        final String reason;
+        final ActorRef<OrderResponse> originalReplyTo;
+
+        private OrderFailed(String orderId, String reason, ActorRef<OrderResponse> originalReplyTo) {
+            this.orderId = orderId;
+            this.reason = reason;
+            this.originalReplyTo = originalReplyTo;
+        }
+    }
+
+    public static final class GetAnalytics implements FridgeCommand {
+        final ActorRef<AnalyticsResponse> replyTo;
+
+        public GetAnalytics(ActorRef<AnalyticsResponse> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    private static final class AutoReorderFinished implements FridgeCommand {
+        final Product product;
+        final boolean success;
+        final String message;
+
+        private AutoReorderFinished(Product product, boolean success, String message) {
+            this.product = product;
+            this.success = success;
+            this.message = message;
+        }
+    }
+
+    private static final class DrainOutbox implements FridgeCommand {}
+
+    private static final class ExpiryTick implements FridgeCommand {}
+
+    public static final class LotExpired {
+        private final String fridge;
+        private final Lot lot;
+
+        public LotExpired(String fridge, Lot lot) {
+            this.fridge = fridge;
+            this.lot = lot;
+        }
+
+        public String getFridge() {
+            return fridge;
+        }
+
+        public Lot getLot() {
+            return lot;
+        }
+    }
+
     public static class ContentsResponse {
-        private final Map<Product, Integer> contents;
-        private final double currentWeight;
-        private final int currentItemCount;
+        private final InventorySnapshot inventory;
         private final double maxWeight;
         private final int maxItemCount;
 
-        public ContentsResponse(Map<Product, Integer> contents, double currentWeight, int currentItemCount, double maxWeight, int maxItemCount) {
-            this.contents = new HashMap<>(contents);
-            this.currentWeight = currentWeight;
-            this.currentItemCount = currentItemCount;
+        public ContentsResponse(InventorySnapshot inventory, double maxWeight, int maxItemCount) {
+            this.inventory = inventory;
             this.maxWeight = maxWeight;
             this.maxItemCount = maxItemCount;
         }
 
+        public InventorySnapshot getInventory() {
+            return inventory;
+        }
+
         public Map<Product, Integer> getContents() {
-            return Collections.unmodifiableMap(contents);
+            return inventory.getContents();
+        }
+
+        public List<Lot> getLots(Product product) {
+            return inventory.getLots(product);
         }
 
         public double getCurrentWeight() {
-            return currentWeight;
+            return inventory.getCurrentWeight();
         }
 
         public int getCurrentItemCount() {
-            return currentItemCount;
+            return inventory.getCurrentItemCount();
         }
 
         public double getMaxWeight() {
@@ -168,39 +250,107 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
         }
     }
 
+    public static class AnalyticsResponse {
+        private final List<ConsumptionForecaster.Forecast> forecasts;
+
+        public AnalyticsResponse(List<ConsumptionForecaster.Forecast> forecasts) {
+            this.forecasts = new ArrayList<>(forecasts);
+        }
+
+        public List<ConsumptionForecaster.Forecast> getForecasts() {
+            return Collections.unmodifiableList(forecasts);
+        }
+    }
+
     private final String identifier;
     private final double maxWeight;
     private final int maxItemCount;
-    private final Map<Product, Integer> contents = new HashMap<>();
+    // Persistent maps holding immutable lot lists, a snapshot shares the current version instead of copying it
+    private PersistentMap<Product, Integer> contents = PersistentMap.empty();
+    private PersistentMap<Product, List<Lot>> lots = PersistentMap.empty();
+    // Totals of contents, kept up to date so neither capacity checks nor snapshots sum them up
+    private double currentWeight;
+    private int currentItemCount;
+    private final Map<Long, Lot> lotsById = new HashMap<>();
+    private final HashedTimingWheel expiryWheel;
+    private final Duration defaultShelfLife;
+    private final Config shelfLives;
+    private final boolean reorderOnExpiry;
+    private final ConsumptionForecaster forecaster;
+    private final Set<Product> pendingReorders = new HashSet<>();
+    // Auto-reorders recorded in the outbox by order id, their product stays pending until the order is acknowledged
+    private final Map<String, Product> queuedReorders = new HashMap<>();
+    private long nextLotId = 1;
     private final List<Order> orderHistory = new ArrayList<>();
     private final List<Receipt> receiptHistory = new ArrayList<>();
+    private final ProductCatalog catalog;
     private final OrderProcessorClient orderProcessorClient;
+    private final OrderOutbox outbox;
+    private final int outboxBatchSize;
 
     private static final int AUTO_REORDER_THRESHOLD = 1;
     private static final int AUTO_REORDER_QUANTITY = 3;
-
-    public static Behavior<FridgeCommand> create(String identifier, double maxWeight, int maxItemCount, String orderProcessorAddress) {
-        return Behaviors.setup(context -> new Fridge(context, identifier, maxWeight, maxItemCount, orderProcessorAddress));
+    private static final Duration AUTO_REORDER_TIMEOUT = Duration.ofSeconds(30);
+    // The ask outlives the order deadline, so the failure comes from the order and not from the ask
+    private static final Duration AUTO_REORDER_ASK_MARGIN = Duration.ofSeconds(5);
+
+    public static Behavior<FridgeCommand> create(String identifier, double maxWeight, int maxItemCount,
+                                                 ProductCatalog catalog, GrpcMetrics orderProcessorMetrics) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new Fridge(context, timers, identifier, maxWeight, maxItemCount, catalog, orderProcessorMetrics)
+        ));
     }
 
-    private Fridge(ActorContext<FridgeCommand> context, String identifier, double maxWeight, int maxItemCount, String orderProcessorAddress) {
+    private Fridge(ActorContext<FridgeCommand> context, TimerScheduler<FridgeCommand> timers, String identifier,
+                   double maxWeight, int maxItemCount, ProductCatalog catalog,
+                   GrpcMetrics orderProcessorMetrics) throws IOException {
         super(context);
         this.identifier = identifier;
         this.maxWeight = maxWeight;
         this.maxItemCount = maxItemCount;
-        this.orderProcessorClient = new OrderProcessorClient(orderProcessorAddress, context.getSystem());
+        this.catalog = catalog;
+        this.orderProcessorClient = new OrderProcessorClient(context.getSystem(), catalog, orderProcessorMetrics);
+
+        Config outboxConfig = context.getSystem().settings().config().getConfig("home-automation.fridge.outbox");
+        this.outbox = OrderOutbox.open(Path.of(outboxConfig.getString("directory")), identifier, catalog);
+        this.outboxBatchSize = outboxConfig.getInt("batch-size");
+        Duration drainInterval = outboxConfig.getDuration("drain-interval");
+
+        Config expiryConfig = context.getSystem().settings().config().getConfig("home-automation.fridge.expiry");
+        Duration expiryTick = expiryConfig.getDuration("tick");
+        this.expiryWheel = new HashedTimingWheel(System.currentTimeMillis(), expiryTick.toMillis(),
+                expiryConfig.getInt("wheel-size"), maxItemCount);
+        this.defaultShelfLife = expiryConfig.getDuration("default-shelf-life");
+        this.shelfLives = expiryConfig.getConfig("shelf-life");
+        this.reorderOnExpiry = expiryConfig.getBoolean("reorder-on-expiry");
+
+        Config forecastConfig = context.getSystem().settings().config().getConfig("home-automation.fridge.forecast");
+        this.forecaster = new ConsumptionForecaster(
+                forecastConfig.getDuration("half-life"),
+                forecastConfig.getDuration("lead-time"),
+                forecastConfig.getDuration("coverage"),
+                forecastConfig.getDouble("safety-factor"),
+                AUTO_REORDER_THRESHOLD,
+                AUTO_REORDER_QUANTITY);
 
         getContext().getLog().info("Fridge {} started with capacity: {} items, {} kg", identifier, maxItemCount, maxWeight);
 
         initializeDefaultContents();
+
+        if (outbox.size() > 0) {
+            getContext().getLog().info("Replayed {} pending orders from outbox", outbox.size());
+            orderHistory.addAll(outbox.getPendingOrders());
+        }
+        timers.startTimerAtFixedRate(new DrainOutbox(), drainInterval);
+        timers.startTimerAtFixedRate(new ExpiryTick(), expiryTick);
     }
 
     private void initializeDefaultContents() {
-        addToContents(new Product("Milk", new BigDecimal("1.99"), 1.0), 2);
-        addToContents(new Product("Cheese", new BigDecimal("3.49"), 0.5), 1);
-        addToContents(new Product("Eggs", new BigDecimal("2.29"), 0.4), 10);
-        addToContents(new Product("Yogurt", new BigDecimal("0.99"), 0.2), 4);
-        addToContents(new Product("Orange Juice", new BigDecimal("2.49"), 1.0), 1);
+        addToContents(catalog.register("Milk", new BigDecimal("1.99"), 1.0), 2);
+        addToContents(catalog.register("Cheese", new BigDecimal("3.49"), 0.5), 1);
+        addToContents(catalog.register("Eggs", new BigDecimal("2.29"), 0.4), 10);
+        addToContents(catalog.register("Yogurt", new BigDecimal("0.99"), 0.2), 4);
+        addToContents(catalog.register("Orange Juice", new BigDecimal("2.49"), 1.0), 1);
     }
 
     @Override
@@ -211,24 +361,25 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
                 .onMessage(OrderProducts.class, this::onOrderProducts)
                 .onMessage(GetOrderHistory.class, this::onGetOrderHistory)
                 .onMessage(AutoReorder.class, this::onAutoReorder)
+                .onMessage(AutoReorderFinished.class, this::onAutoReorderFinished)
+                .onMessage(GetAnalytics.class, this::onGetAnalytics)
                 .onMessage(OrderCompleted.class, this::onOrderCompleted)
+                .onMessage(OrderFailed.class, this::onOrderFailed)
+                .onMessage(DrainOutbox.class, this::onDrainOutbox)
+                .onMessage(ExpiryTick.class, this::onExpiryTick)
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     private Behavior<FridgeCommand> onGetContents(GetContents msg) {
-        double currentWeight = calculateCurrentWeight();
-        int currentItemCount = calculateCurrentItemCount();
-
-        msg.replyTo.tell(new ContentsResponse(contents, currentWeight, currentItemCount, maxWeight, maxItemCount));
+        msg.replyTo.tell(new ContentsResponse(currentSnapshot(), maxWeight, maxItemCount));
 
         return this;
     }
 
     private Behavior<FridgeCommand> onConsumeProduct(ConsumeProduct msg) {
-        Optional<Product> product = contents.keySet().stream()
-                .filter(p -> p.getId().equals(msg.productId))
-                .findFirst();
+        Optional<Product> product = catalog.findById(msg.productId)
+                .filter(contents::containsKey);
 
         if (product.isEmpty()) {
             msg.replyTo.tell(new ConsumeResponse(false, "Product not found in fridge"));
@@ -244,21 +395,20 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
         }
 
         int newQuantity = currentQuantity - msg.quantity;
+        removeFromLots(p, msg.quantity);
+        forecaster.recordConsumption(p, msg.quantity, System.currentTimeMillis());
 
+        adjustTotals(p, -msg.quantity);
         if (newQuantity == 0) {
-            contents.remove(p);
+            contents = contents.minus(p);
             getContext().getLog().info("Consumed last {} x {}", msg.quantity, p.getName());
-
-            getContext().getSelf().tell(new AutoReorder(p, AUTO_REORDER_QUANTITY));
         } else {
-            contents.put(p, newQuantity);
+            contents = contents.plus(p, newQuantity);
             getContext().getLog().info("Consumed {} x {}. Remaining: {}", msg.quantity, p.getName(), newQuantity);
-
-            if (newQuantity <= AUTO_REORDER_THRESHOLD) {
-                getContext().getSelf().tell(new AutoReorder(p, AUTO_REORDER_QUANTITY));
-            }
         }
 
+        reorderIfNeeded(p, newQuantity);
+
         msg.replyTo.tell(new ConsumeResponse(true, "Consumed " + msg.quantity + " x " + p.getName()));
 
         return this;
@@ -293,20 +443,72 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
         }
 
         Order order = new Order(msg.items);
+
+        // An order that is not in the outbox would be lost on a restart, so it is not sent at all
+        try {
+            outbox.append(order);
+        } catch (IOException e) {
+            getContext().getLog().error("Could not write order {} to outbox: {}", order.getId(), e.getMessage());
+            msg.replyTo.tell(new OrderResponse(false,
+                    "Order could not be recorded, please try again", Optional.empty()));
+            return this;
+        }
         orderHistory.add(order);
+        if (msg.reorder != null) {
+            queuedReorders.put(order.getId(), msg.reorder);
+        }
 
         getContext().getLog().info("Order validated, sending to external processor: {}", order.getId());
 
-        CompletionStage<Receipt> receiptFuture = orderProcessorClient.processOrder(order);
+        submitOrder(order, msg.deadline, msg.replyTo);
 
-        receiptFuture.thenAccept(receipt -> {
-            getContext().getSelf().tell(new OrderCompleted(receipt, msg.replyTo));
-                }).exceptionally(ex -> {
-                    getContext().getLog().error("Error processing failed: {}", ex.getMessage());
-                    msg.replyTo.tell(new OrderResponse(false,
-                            "Order processing failed: " + ex.getMessage(), Optional.empty()));
-                    return null;
+        return this;
+    }
+
+    private void submitOrder(Order order, Instant deadline, ActorRef<OrderResponse> replyTo) {
+        outbox.markInFlight(order.getId());
+        handleReceipt(order, orderProcessorClient.processOrder(order, deadline), replyTo);
+    }
+
+    private void handleReceipt(Order order, CompletionStage<Receipt> receiptFuture, ActorRef<OrderResponse> replyTo) {
+        ActorRef<FridgeCommand> self = getContext().getSelf();
+
+        receiptFuture.whenComplete((receipt, ex) -> {
+            if (ex == null) {
+                self.tell(new OrderCompleted(receipt, replyTo));
+            } else {
+                self.tell(new OrderFailed(order.getId(), ex.getMessage(), replyTo));
+            }
         });
+    }
+
+    private Behavior<FridgeCommand> onOrderFailed(OrderFailed msg) {
+        outbox.release(msg.orderId);
+
+        boolean queued = outbox.isPending(msg.orderId);
+        getContext().getLog().error("Order processing failed for {}: {}", msg.orderId, msg.reason);
+
+        msg.originalReplyTo.tell(new OrderResponse(false,
+                "Order processing failed: " + msg.reason + (queued ? ". The order was queued and will be retried" : ""),
+                Optional.empty()));
+
+        return this;
+    }
+
+    private Behavior<FridgeCommand> onDrainOutbox(DrainOutbox msg) {
+        int capacity = outboxBatchSize - outbox.inFlightCount();
+        if (capacity <= 0 || !outbox.hasIdleOrders()) {
+            return this;
+        }
+
+        List<Order> batch = outbox.nextBatch(capacity);
+        getContext().getLog().info("Draining {} of {} pending orders from outbox", batch.size(), outbox.size());
+
+        // Submitted together so the client can send them as a single batch call
+        List<CompletionStage<Receipt>> receipts = orderProcessorClient.processOrders(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            handleReceipt(batch.get(i), receipts.get(i), getContext().getSystem().ignoreRef());
+        }
 
         return this;
     }
@@ -315,10 +517,22 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
         Receipt receipt = msg.receipt;
         getContext().getLog().info("Order completed, receipt received: {}", receipt.getOrderId());
 
+        try {
+            outbox.acknowledge(receipt.getOrderId());
+        } catch (IOException e) {
+            getContext().getLog().error("Could not acknowledge order {} in outbox: {}", receipt.getOrderId(), e.getMessage());
+        }
+
         receiptHistory.add(receipt);
 
+        Product reordered = queuedReorders.remove(receipt.getOrderId());
+        if (reordered != null) {
+            pendingReorders.remove(reordered);
+        }
+
+        // Stocked under the canonical product, the receipt keeps the price that was charged
         for (OrderItem item : receipt.getItems()) {
-            addToContents(item.getProduct(), item.getQuantity());
+            addToContents(catalog.intern(item.getProduct()), item.getQuantity());
         }
 
         msg.originalReplyTo.tell(new OrderResponse(true, "Order processed successfully", Optional.of(receipt)));
@@ -332,44 +546,180 @@ public class Fridge extends AbstractBehavior<Fridge.FridgeCommand> {
     }
 
     private Behavior<FridgeCommand> onAutoReorder(AutoReorder msg) {
-        getContext().getLog().info("Auto-reordering {} x {}", msg.quantityToOrder, msg.product.getName());
+        if (pendingReorders.contains(msg.product)) {
+            getContext().getLog().debug("Auto-reorder for {} already in progress", msg.product.getName());
+            return this;
+        }
+
+        int freeItems = maxItemCount - calculateCurrentItemCount();
+        int freeByWeight = (int) Math.floor((maxWeight - calculateCurrentWeight()) / msg.product.getWeight());
+        int quantity = Math.min(msg.quantityToOrder, Math.min(freeItems, freeByWeight));
 
-        List<OrderItem> items = Collections.singletonList(new OrderItem(msg.product, msg.quantityToOrder));
+        if (quantity <= 0) {
+            getContext().getLog().warn("No space left to auto-reorder {}", msg.product.getName());
+            return this;
+        }
+
+        getContext().getLog().info("Auto-reordering {} x {}", quantity, msg.product.getName());
+        pendingReorders.add(msg.product);
 
-        ActorRef<OrderResponse> autoReorderAdapter = getContext().messageAdapter(
+        List<OrderItem> items = Collections.singletonList(new OrderItem(msg.product, quantity));
+
+        getContext().ask(
                 OrderResponse.class,
-                response -> {
-                    if (response.isSuccess()) {
-                        getContext().getLog().info("Auto-reordering successful for {}", msg.product.getName());
-                    } else {
-                        getContext().getLog().warn("Auto-reordering failed for {}: {}", msg.product.getName(), response.getMessage());
-                    }
+                getContext().getSelf(),
+                AUTO_REORDER_TIMEOUT.plus(AUTO_REORDER_ASK_MARGIN),
+                replyTo -> new OrderProducts(items, Instant.now().plus(AUTO_REORDER_TIMEOUT), msg.product, replyTo),
+                (response, ex) -> response != null
+                        ? new AutoReorderFinished(msg.product, response.isSuccess(), response.getMessage())
+                        : new AutoReorderFinished(msg.product, false, ex.getMessage()));
 
-                    return new FridgeCommand() {};
-                });
+        return this;
+    }
 
-        getContext().getSelf().tell(new OrderProducts(items, autoReorderAdapter));
+    private Behavior<FridgeCommand> onAutoReorderFinished(AutoReorderFinished msg) {
+        // A failed order that made it into the outbox is retried, reordering again would order twice
+        boolean queued = queuedReorders.containsValue(msg.product);
+        if (!queued) {
+            pendingReorders.remove(msg.product);
+        }
 
+        if (msg.success) {
+            getContext().getLog().info("Auto-reordering successful for {}", msg.product.getName());
+        } else if (queued) {
+            getContext().getLog().warn("Auto-reordering for {} failed, the order stays queued for retry: {}",
+                    msg.product.getName(), msg.message);
+        } else {
+            getContext().getLog().warn("Auto-reordering failed for {}: {}", msg.product.getName(), msg.message);
+        }
+
+        return this;
+    }
+
+    private Behavior<FridgeCommand> onGetAnalytics(GetAnalytics msg) {
+        long now = System.currentTimeMillis();
+        List<ConsumptionForecaster.Forecast> forecasts = new ArrayList<>();
+
+        contents.forEach((product, quantity) -> forecasts.add(forecaster.forecast(product, quantity, now)));
+
+        msg.replyTo.tell(new AnalyticsResponse(forecasts));
         return this;
     }
 
+    private void reorderIfNeeded(Product product, int remaining) {
+        long now = System.currentTimeMillis();
+
+        if (remaining <= forecaster.reorderPoint(product, now) && !pendingReorders.contains(product)) {
+            getContext().getSelf().tell(new AutoReorder(product, forecaster.reorderQuantity(product, now)));
+        }
+    }
+
+    private Behavior<FridgeCommand> onExpiryTick(ExpiryTick msg) {
+        expiryWheel.advance(System.currentTimeMillis(), this::expireLot);
+        return this;
+    }
+
+    private void expireLot(long lotId) {
+        Lot lot = lotsById.remove(lotId);
+        if (lot == null) {
+            return;
+        }
+
+        Product product = lot.getProduct();
+        List<Lot> productLots = new ArrayList<>(lots.get(product));
+        productLots.removeIf(l -> l.getId() == lotId);
+        replaceLots(product, productLots);
+
+        int before = contents.getOrDefault(product, 0);
+        int remaining = before - lot.getQuantity();
+        contents = remaining <= 0 ? contents.minus(product) : contents.plus(product, remaining);
+        adjustTotals(product, Math.max(remaining, 0) - before);
+
+        getContext().getLog().info("Lot expired: {}. Remaining: {}", lot, Math.max(remaining, 0));
+        getContext().getSystem().eventStream().tell(new EventStream.Publish<>(new LotExpired(identifier, lot)));
+
+        if (reorderOnExpiry) {
+            reorderIfNeeded(product, Math.max(remaining, 0));
+        }
+    }
+
     private void addToContents(Product product, int quantity) {
-        contents.merge(product, quantity, Integer::sum);
+        LocalDate bestBefore = LocalDate.now().plusDays(shelfLifeOf(product).toDays());
+        long deadline = bestBefore.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+        long lotId = nextLotId++;
+        Lot lot = new Lot(lotId, product, quantity, bestBefore, expiryWheel.schedule(lotId, deadline));
+
+        // Lots are kept sorted by best-before date so consumption takes the oldest first
+        List<Lot> productLots = new ArrayList<>(lots.getOrDefault(product, Collections.emptyList()));
+        int index = productLots.size();
+        while (index > 0 && productLots.get(index - 1).getBestBefore().isAfter(bestBefore)) {
+            index--;
+        }
+        productLots.add(index, lot);
+        replaceLots(product, productLots);
+        lotsById.put(lotId, lot);
+
+        contents = contents.plus(product, contents.getOrDefault(product, 0) + quantity);
+        adjustTotals(product, quantity);
+    }
+
+    private void adjustTotals(Product product, int quantity) {
+        currentItemCount += quantity;
+        // Resetting on empty keeps rounding errors of the running sum from piling up
+        currentWeight = currentItemCount == 0 ? 0.0 : currentWeight + product.getWeight() * quantity;
+    }
+
+    private void removeFromLots(Product product, int quantity) {
+        List<Lot> productLots = new ArrayList<>(lots.get(product));
+        int toRemove = quantity;
+
+        while (toRemove > 0 && !productLots.isEmpty()) {
+            Lot oldest = productLots.get(0);
+            if (oldest.getQuantity() <= toRemove) {
+                toRemove -= oldest.getQuantity();
+                productLots.remove(0);
+                lotsById.remove(oldest.getId());
+                expiryWheel.cancel(oldest.expiryHandle);
+            } else {
+                Lot reduced = oldest.withQuantity(oldest.getQuantity() - toRemove);
+                productLots.set(0, reduced);
+                lotsById.put(reduced.getId(), reduced);
+                toRemove = 0;
+            }
+        }
+
+        replaceLots(product, productLots);
+    }
+
+    private void replaceLots(Product product, List<Lot> productLots) {
+        lots = productLots.isEmpty() ? lots.minus(product) : lots.plus(product, List.copyOf(productLots));
+    }
+
+    private InventorySnapshot currentSnapshot() {
+        return new InventorySnapshot(contents, lots, currentWeight, currentItemCount);
+    }
+
+    private Duration shelfLifeOf(Product product) {
+        String path = ConfigUtil.joinPath(product.getName());
+        return shelfLives.hasPath(path) ? shelfLives.getDuration(path) : defaultShelfLife;
     }
 
     private double calculateCurrentWeight() {
-        return contents.entrySet().stream()
-                .mapToDouble(e -> e.getKey().getWeight() * e.getValue())
-                .sum();
+        return currentWeight;
     }
 
     private int calculateCurrentItemCount() {
-        return contents.values().stream()
-                .mapToInt(Integer::intValue)
-                .sum();
+        return currentItemCount;
     }
 
     private Fridge onPostStop() {
+        orderProcessorClient.shutdown();
+        try {
+            outbox.close();
+        } catch (IOException e) {
+            getContext().getLog().error("Error closing outbox: {}", e.getMessage());
+        }
         getContext().getLog().info("Fridge {} actor stopped", identifier);
         return this;
     }
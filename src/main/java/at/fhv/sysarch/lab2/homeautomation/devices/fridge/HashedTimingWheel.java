@@ -0,0 +1,172 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/** Hashed timing wheel for many coarse grained timeouts. Not thread-safe. */
+public final class HashedTimingWheel {
+
+    private static final int NIL = -1;
+
+    private final long startMillis;
+    private final long tickMillis;
+    private final int mask;
+    private final int[] buckets;
+
+    private long[] ids;
+    private long[] deadlineTicks;
+    private int[] next;
+    private int[] prev;
+    private int[] generations;
+    private int freeHead = NIL;
+    private int highWater;
+    private int size;
+    private long currentTick;
+    private long[] expired = new long[64];
+
+    public HashedTimingWheel(long startMillis, long tickMillis, int wheelSize, int initialCapacity) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+        }
+
+        this.startMillis = startMillis;
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.buckets = new int[wheelSize];
+        Arrays.fill(buckets, NIL);
+
+        int capacity = Math.max(16, initialCapacity);
+        this.ids = new long[capacity];
+        this.deadlineTicks = new long[capacity];
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+        this.generations = new int[capacity];
+    }
+
+    /**
+     * Schedules {@code id} to expire at {@code deadlineMillis}. Deadlines in the past fire on the next tick.
+     *
+     * @return a handle that can be passed to {@link #cancel(long)}
+     */
+    public long schedule(long id, long deadlineMillis) {
+        long tick = Math.max(currentTick + 1, ceilDiv(deadlineMillis - startMillis, tickMillis));
+        int slot = allocate();
+
+        ids[slot] = id;
+        deadlineTicks[slot] = tick;
+        link(slot, (int) (tick & mask));
+        size++;
+
+        return ((long) generations[slot] << 32) | slot;
+    }
+
+    public boolean cancel(long handle) {
+        int slot = (int) handle;
+        int generation = (int) (handle >>> 32);
+
+        if (slot < 0 || slot >= highWater || generations[slot] != generation || deadlineTicks[slot] < 0) {
+            return false;
+        }
+
+        release(slot);
+        return true;
+    }
+
+    /**
+     * Advances the wheel to {@code nowMillis} and reports the id of every timer that is due.
+     *
+     * @return the number of expired timers
+     */
+    public int advance(long nowMillis, LongConsumer onExpired) {
+        long targetTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+        if (targetTick <= currentTick) {
+            return 0;
+        }
+
+        long bucketsToVisit = Math.min(targetTick - currentTick, buckets.length);
+        int count = 0;
+
+        for (long t = currentTick + 1; t <= currentTick + bucketsToVisit; t++) {
+            int slot = buckets[(int) (t & mask)];
+            while (slot != NIL) {
+                int following = next[slot];
+                if (deadlineTicks[slot] <= targetTick) {
+                    if (count == expired.length) {
+                        expired = Arrays.copyOf(expired, count * 2);
+                    }
+                    expired[count++] = ids[slot];
+                    release(slot);
+                }
+                slot = following;
+            }
+        }
+        currentTick = targetTick;
+
+        // Callbacks run after the wheel is consistent again, so they may schedule or cancel freely
+        for (int i = 0; i < count; i++) {
+            onExpired.accept(expired[i]);
+        }
+
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int allocate() {
+        if (freeHead != NIL) {
+            int slot = freeHead;
+            freeHead = next[slot];
+            return slot;
+        }
+
+        if (highWater == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            deadlineTicks = Arrays.copyOf(deadlineTicks, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+        }
+
+        return highWater++;
+    }
+
+    private void link(int slot, int bucket) {
+        int head = buckets[bucket];
+        prev[slot] = NIL;
+        next[slot] = head;
+        if (head != NIL) {
+            prev[head] = slot;
+        }
+        buckets[bucket] = slot;
+    }
+
+    private void release(int slot) {
+        int before = prev[slot];
+        int after = next[slot];
+
+        if (before != NIL) {
+            next[before] = after;
+        } else {
+            buckets[(int) (deadlineTicks[slot] & mask)] = after;
+        }
+        if (after != NIL) {
+            prev[after] = before;
+        }
+
+        deadlineTicks[slot] = -1;
+        generations[slot]++;
+        next[slot] = freeHead;
+        freeHead = slot;
+        size--;
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return -Math.floorDiv(-x, y);
+    }
+}
@@ -0,0 +1,38 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/** Immutable view of a fridge's inventory. */
+public final class InventorySnapshot {
+
+    private final PersistentMap<Product, Integer> contents;
+    private final PersistentMap<Product, List<Lot>> lots;
+    private final double currentWeight;
+    private final int currentItemCount;
+
+    InventorySnapshot(PersistentMap<Product, Integer> contents, PersistentMap<Product, List<Lot>> lots,
+                      double currentWeight, int currentItemCount) {
+        this.contents = contents;
+        this.lots = lots;
+        this.currentWeight = currentWeight;
+        this.currentItemCount = currentItemCount;
+    }
+
+    public Map<Product, Integer> getContents() {
+        return contents.asMap();
+    }
+
+    public List<Lot> getLots(Product product) {
+        return lots.getOrDefault(product, Collections.emptyList());
+    }
+
+    public double getCurrentWeight() {
+        return currentWeight;
+    }
+
+    public int getCurrentItemCount() {
+        return currentItemCount;
+    }
+}
@@ -0,0 +1,44 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import java.time.LocalDate;
+
+public class Lot {
+    private final long id;
+    private final Product product;
+    private final int quantity;
+    private final LocalDate bestBefore;
+    final long expiryHandle;
+
+    Lot(long id, Product product, int quantity, LocalDate bestBefore, long expiryHandle) {
+        this.id = id;
+        this.product = product;
+        this.quantity = quantity;
+        this.bestBefore = bestBefore;
+        this.expiryHandle = expiryHandle;
+    }
+
+    Lot withQuantity(int quantity) {
+        return new Lot(id, product, quantity, bestBefore, expiryHandle);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Product getProduct() {
+        return product;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public LocalDate getBestBefore() {
+        return bestBefore;
+    }
+
+    @Override
+    public String toString() {
+        return quantity + "x " + product.getName() + " (best before " + bestBefore + ")";
+    }
+}
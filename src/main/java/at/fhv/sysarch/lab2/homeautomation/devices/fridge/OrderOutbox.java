@@ -0,0 +1,180 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderProtoConverter;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.OrderRequest;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/** File-backed log of orders not yet confirmed by the order processor. Owned by a single actor. */
+public class OrderOutbox implements Closeable {
+
+    private static final byte PENDING = 1;
+    private static final byte ACKNOWLEDGED = 2;
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private final Path file;
+    private final ProductCatalog catalog;
+    private final Map<String, Order> pending = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private int recordCount;
+
+    private OrderOutbox(Path file, ProductCatalog catalog) {
+        this.file = file;
+        this.catalog = catalog;
+    }
+
+    public static OrderOutbox open(Path directory, String name, ProductCatalog catalog) throws IOException {
+        Files.createDirectories(directory);
+
+        OrderOutbox outbox = new OrderOutbox(directory.resolve(name + ".outbox"), catalog);
+        outbox.replay();
+        outbox.compact();
+
+        return outbox;
+    }
+
+    public void append(Order order) throws IOException {
+        byte[] payload = OrderProtoConverter.toOrderRequest(order).toByteArray();
+
+        out.writeByte(PENDING);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+        fileOut.getFD().sync();
+
+        pending.put(order.getId(), order);
+        recordCount++;
+    }
+
+    public void acknowledge(String orderId) throws IOException {
+        inFlight.remove(orderId);
+
+        if (pending.remove(orderId) == null) {
+            return;
+        }
+
+        // Acknowledgements are not synced: losing one only means the order is resent after a crash
+        out.writeByte(ACKNOWLEDGED);
+        out.writeUTF(orderId);
+        out.flush();
+        recordCount++;
+
+        if (recordCount > COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    public void markInFlight(String orderId) {
+        if (pending.containsKey(orderId)) {
+            inFlight.add(orderId);
+        }
+    }
+
+    public void release(String orderId) {
+        inFlight.remove(orderId);
+    }
+
+    public List<Order> nextBatch(int maxSize) {
+        List<Order> batch = new ArrayList<>(Math.min(maxSize, pending.size()));
+
+        for (Order order : pending.values()) {
+            if (batch.size() >= maxSize) {
+                break;
+            }
+            if (inFlight.add(order.getId())) {
+                batch.add(order);
+            }
+        }
+
+        return batch;
+    }
+
+    public Collection<Order> getPendingOrders() {
+        return Collections.unmodifiableCollection(pending.values());
+    }
+
+    public boolean isPending(String orderId) {
+        return pending.containsKey(orderId);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public boolean hasIdleOrders() {
+        return pending.size() > inFlight.size();
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+
+                if (type == PENDING) {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    Order order = OrderProtoConverter.toOrder(OrderRequest.parseFrom(payload), catalog);
+                    pending.put(order.getId(), order);
+                } else if (type == ACKNOWLEDGED) {
+                    pending.remove(in.readUTF());
+                } else {
+                    throw new IOException("Corrupt outbox record type " + type + " in " + file);
+                }
+            }
+        } catch (EOFException e) {
+            // A torn record at the tail was never acknowledged to anyone, the compaction drops it
+        }
+    }
+
+    private void compact() throws IOException {
+        closeStreams();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp.toFile());
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tmpOut))) {
+            for (Order order : pending.values()) {
+                byte[] payload = OrderProtoConverter.toOrderRequest(order).toByteArray();
+                data.writeByte(PENDING);
+                data.writeInt(payload.length);
+                data.write(payload);
+            }
+            data.flush();
+            tmpOut.getFD().sync();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        recordCount = pending.size();
+        fileOut = new FileOutputStream(file.toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    private void closeStreams() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeStreams();
+    }
+}
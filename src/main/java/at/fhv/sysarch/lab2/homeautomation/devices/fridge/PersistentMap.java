@@ -0,0 +1,337 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash map as a hash array mapped trie. {@link #plus} and {@link #minus} return a new map sharing all
+ * but the changed path with this one, so holding on to an older version costs nothing.
+ */
+final class PersistentMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private static final class Entry<K, V> extends AbstractMap.SimpleImmutableEntry<K, V> {
+        final int hash;
+
+        Entry(int hash, K key, V value) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    // Slots hold entries or child nodes, in the order of their bits. Below the last level of hash bits
+    // the bitmap is unused and the slots hold the entries whose hashes collide.
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    V get(Object key) {
+        Entry<K, V> entry = find(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    V getOrDefault(Object key, V defaultValue) {
+        Entry<K, V> entry = find(key);
+        return entry == null ? defaultValue : entry.getValue();
+    }
+
+    boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    PersistentMap<K, V> plus(K key, V value) {
+        Entry<K, V> entry = new Entry<>(key.hashCode(), key, value);
+        if (root == null) {
+            return new PersistentMap<>(new Node(bit(entry.hash, 0), new Object[]{entry}), 1);
+        }
+        boolean[] added = new boolean[1];
+        Node updated = put(root, 0, entry, added);
+        return updated == root ? this : new PersistentMap<>(updated, added[0] ? size + 1 : size);
+    }
+
+    PersistentMap<K, V> minus(Object key) {
+        if (root == null) {
+            return this;
+        }
+        Node updated = remove(root, 0, key.hashCode(), key);
+        if (updated == root) {
+            return this;
+        }
+        return updated == null ? empty() : new PersistentMap<>(updated, size - 1);
+    }
+
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Iterator<Map.Entry<K, V>> entries = new EntryIterator<>(root); entries.hasNext(); ) {
+            Map.Entry<K, V> entry = entries.next();
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Read-only {@link Map} view of this version. */
+    Map<K, V> asMap() {
+        return new AbstractMap<>() {
+            @Override
+            public Set<Map.Entry<K, V>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Map.Entry<K, V>> iterator() {
+                        return new EntryIterator<>(root);
+                    }
+
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+                };
+            }
+
+            @Override
+            public V get(Object key) {
+                return PersistentMap.this.get(key);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return PersistentMap.this.containsKey(key);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<K, V> find(Object key) {
+        int hash = key.hashCode();
+        Node node = root;
+        int shift = 0;
+        while (node != null) {
+            if (shift >= Integer.SIZE) {
+                for (Object slot : node.slots) {
+                    Entry<K, V> entry = (Entry<K, V>) slot;
+                    if (entry.getKey().equals(key)) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Node child) {
+                node = child;
+                shift += BITS;
+            } else {
+                Entry<K, V> entry = (Entry<K, V>) slot;
+                return entry.hash == hash && entry.getKey().equals(key) ? entry : null;
+            }
+        }
+        return null;
+    }
+
+    private static Node put(Node node, int shift, Entry<?, ?> entry, boolean[] added) {
+        if (shift >= Integer.SIZE) {
+            for (int i = 0; i < node.slots.length; i++) {
+                Entry<?, ?> existing = (Entry<?, ?>) node.slots[i];
+                if (existing.getKey().equals(entry.getKey())) {
+                    return existing.getValue() == entry.getValue() ? node : new Node(0, replace(node.slots, i, entry));
+                }
+            }
+            added[0] = true;
+            return new Node(0, insert(node.slots, node.slots.length, entry));
+        }
+
+        int bit = bit(entry.hash, shift);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            return new Node(node.bitmap | bit, insert(node.slots, index, entry));
+        }
+
+        Object slot = node.slots[index];
+        if (slot instanceof Node child) {
+            Node updated = put(child, shift + BITS, entry, added);
+            return updated == child ? node : new Node(node.bitmap, replace(node.slots, index, updated));
+        }
+
+        Entry<?, ?> existing = (Entry<?, ?>) slot;
+        if (existing.hash == entry.hash && existing.getKey().equals(entry.getKey())) {
+            return existing.getValue() == entry.getValue()
+                    ? node
+                    : new Node(node.bitmap, replace(node.slots, index, entry));
+        }
+        added[0] = true;
+        return new Node(node.bitmap, replace(node.slots, index, split(existing, entry, shift + BITS)));
+    }
+
+    private static Node split(Entry<?, ?> first, Entry<?, ?> second, int shift) {
+        if (shift >= Integer.SIZE) {
+            return new Node(0, new Object[]{first, second});
+        }
+        int firstBit = bit(first.hash, shift);
+        int secondBit = bit(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new Node(firstBit, new Object[]{split(first, second, shift + BITS)});
+        }
+        return new Node(firstBit | secondBit, Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new Object[]{first, second}
+                : new Object[]{second, first});
+    }
+
+    // Returns the node unchanged if the key is absent, and null once the node is left empty
+    private static Node remove(Node node, int shift, int hash, Object key) {
+        if (shift >= Integer.SIZE) {
+            for (int i = 0; i < node.slots.length; i++) {
+                if (((Entry<?, ?>) node.slots[i]).getKey().equals(key)) {
+                    return node.slots.length == 1 ? null : new Node(0, delete(node.slots, i));
+                }
+            }
+            return node;
+        }
+
+        int bit = bit(hash, shift);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object slot = node.slots[index];
+
+        if (slot instanceof Node child) {
+            Node updated = remove(child, shift + BITS, hash, key);
+            if (updated == child) {
+                return node;
+            }
+            if (updated == null) {
+                return node.bitmap == bit ? null : new Node(node.bitmap ^ bit, delete(node.slots, index));
+            }
+            // A child left with a single entry is replaced by that entry
+            Object replacement = updated.slots.length == 1 && updated.slots[0] instanceof Entry
+                    ? updated.slots[0]
+                    : updated;
+            return new Node(node.bitmap, replace(node.slots, index, replacement));
+        }
+
+        Entry<?, ?> entry = (Entry<?, ?>) slot;
+        if (entry.hash != hash || !entry.getKey().equals(key)) {
+            return node;
+        }
+        return node.bitmap == bit ? null : new Node(node.bitmap ^ bit, delete(node.slots, index));
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static Object[] insert(Object[] slots, int index, Object slot) {
+        Object[] copy = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, copy, 0, index);
+        copy[index] = slot;
+        System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+        return copy;
+    }
+
+    private static Object[] replace(Object[] slots, int index, Object slot) {
+        Object[] copy = Arrays.copyOf(slots, slots.length);
+        copy[index] = slot;
+        return copy;
+    }
+
+    private static Object[] delete(Object[] slots, int index) {
+        Object[] copy = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, copy, 0, index);
+        System.arraycopy(slots, index + 1, copy, index, slots.length - index - 1);
+        return copy;
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final ArrayDeque<Node> nodes = new ArrayDeque<>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<>();
+        private Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                nodes.push(root);
+                positions.push(0);
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> current = next;
+            advance();
+            return current;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!nodes.isEmpty()) {
+                Node node = nodes.peek();
+                int position = positions.pop();
+                if (position == node.slots.length) {
+                    nodes.pop();
+                    continue;
+                }
+                positions.push(position + 1);
+                Object slot = node.slots[position];
+                if (slot instanceof Node child) {
+                    nodes.push(child);
+                    positions.push(0);
+                } else {
+                    next = (Entry<K, V>) slot;
+                    return;
+                }
+            }
+        }
+    }
+}
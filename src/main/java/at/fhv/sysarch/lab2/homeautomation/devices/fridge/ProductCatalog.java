@@ -0,0 +1,77 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared registry of canonical {@link Product} instances, keyed by a SKU derived from the name. Thread-safe.
+ */
+public class ProductCatalog {
+
+    private final ConcurrentHashMap<String, Product> productsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Product> productsByName = new ConcurrentHashMap<>();
+
+    /** Returns the canonical product of that name. A known name with a different price or weight is rejected. */
+    public Product register(String name, BigDecimal price, double weight) {
+        Product cached = productsByName.get(normalize(name));
+        Product product = cached != null ? cached : intern(new Product(skuOf(name), name, price, weight));
+
+        if (product.getPrice().compareTo(price) != 0 || Double.compare(product.getWeight(), weight) != 0) {
+            throw new IllegalArgumentException("Product '" + name + "' is registered at " + product.getPrice()
+                    + " and " + product.getWeight() + "kg, not " + price + " and " + weight + "kg");
+        }
+        return product;
+    }
+
+    public Product intern(Product product) {
+        Product existing = productsById.get(product.getId());
+        if (existing != null) {
+            return existing;
+        }
+
+        Product canonical = productsById.computeIfAbsent(product.getId(), id -> product);
+        productsByName.putIfAbsent(normalize(canonical.getName()), canonical);
+        return canonical;
+    }
+
+    public Optional<Product> findById(String id) {
+        return Optional.ofNullable(productsById.get(id));
+    }
+
+    public Optional<Product> findByName(String name) {
+        return Optional.ofNullable(productsByName.get(normalize(name)));
+    }
+
+    public int size() {
+        return productsById.size();
+    }
+
+    public static String skuOf(String name) {
+        StringBuilder sku = new StringBuilder(name.length());
+        boolean pendingSeparator = false;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toLowerCase(name.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSeparator && sku.length() > 0) {
+                    sku.append('-');
+                }
+                sku.append(c);
+                pendingSeparator = false;
+            } else {
+                pendingSeparator = true;
+            }
+        }
+
+        if (sku.length() == 0) {
+            throw new IllegalArgumentException("Product name must contain a letter or digit: '" + name + "'");
+        }
+        return sku.toString();
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,116 +1,474 @@
 package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
 
+import akka.actor.Cancellable;
 import akka.actor.typed.ActorSystem;
 import at.fhv.sysarch.lab2.homeautomation.devices.fridge.*;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
 
+import com.typesafe.config.Config;
+import io.grpc.ConnectivityState;
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.NameResolverRegistry;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class OrderProcessorClient {
 
+    static {
+        NameResolverRegistry.getDefaultRegistry().register(new StaticNameResolverProvider());
+    }
+
+    // Name of the in-process server the co-located order processor is registered under
+    public static final String IN_PROCESS_NAME = "order-processor";
+
     private final ManagedChannel channel;
     private final OrderProcessorGrpc.OrderProcessorStub asyncStub;
     private final ActorSystem<?> system;
+    private final ProductCatalog catalog;
+    private final boolean streaming;
+    private final int maxBatchSize;
+    // Deadline of orders that do not bring their own
+    private final Duration callTimeout;
+
+    // Orders waiting to be dispatched, several waiting orders are sent as one batch
+    private final Queue<PendingOrder> waitingOrders = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final Executor dispatcher;
 
-    public OrderProcessorClient(String serverHost, ActorSystem<?> system) {
+    // One stream per endpoint, each on a channel of its own, so streamed orders are spread over the processors
+    // like balanced calls. An order id always takes the same stream while its processor is reachable, so a
+    // resent order meets its first attempt.
+    private final OrderStream[] streams;
+
+    public OrderProcessorClient(ActorSystem<?> system, ProductCatalog catalog, GrpcMetrics metrics) {
+        Config config = system.settings().config().getConfig("home-automation.order-processor");
         this.system = system;
+        this.catalog = catalog;
+        this.streaming = config.getBoolean("streaming");
+        this.maxBatchSize = config.getInt("max-batch-size");
+        this.callTimeout = config.getDuration("call-timeout");
+        this.dispatcher = system.executionContext();
 
-        this.channel = ManagedChannelBuilder.forAddress(serverHost, 8101)
+        this.channel = createChannel(config, metrics);
+        if (!streaming || isColocated(config) || endpoints(config).size() == 1) {
+            this.streams = new OrderStream[] {new OrderStream(channel)};
+        } else {
+            List<String> endpoints = endpoints(config);
+            this.streams = new OrderStream[endpoints.size()];
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = new OrderStream(createRemoteChannel(config, List.of(endpoints.get(i)), metrics));
+            }
+        }
+
+        this.asyncStub = OrderProcessorGrpc.newStub(channel);
+    }
+
+    public static boolean isColocated(Config config) {
+        String mode = config.getString("mode");
+        if (!mode.equals("remote") && !mode.equals("colocated")) {
+            throw new IllegalArgumentException("Unknown order processor mode: " + mode);
+        }
+        return mode.equals("colocated");
+    }
+
+    static ManagedChannel createChannel(Config config, GrpcMetrics metrics) {
+        if (isColocated(config)) {
+            return InProcessChannelBuilder.forName(IN_PROCESS_NAME)
+                    .intercept(metrics.clientInterceptor())
+                    .build();
+        }
+
+        return createRemoteChannel(config, endpoints(config), metrics);
+    }
+
+    private static ManagedChannel createRemoteChannel(Config config, List<String> endpoints, GrpcMetrics metrics) {
+        String policy = config.getString("load-balancing-policy");
+
+        // With round_robin, processors that report NOT_SERVING are taken out of rotation until they recover
+        Map<String, Object> serviceConfig = new HashMap<>();
+        serviceConfig.put("loadBalancingConfig", List.of(Map.of(policy, Map.of())));
+        if (config.getBoolean("health-check")) {
+            serviceConfig.put("healthCheckConfig", Map.of("serviceName", OrderProcessorGrpc.SERVICE_NAME));
+        }
+
+        return ManagedChannelBuilder.forTarget(StaticNameResolverProvider.target(endpoints))
+                .defaultServiceConfig(serviceConfig)
+                .keepAliveTime(config.getDuration("keepalive-time").toMillis(), TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(config.getDuration("keepalive-timeout").toMillis(), TimeUnit.MILLISECONDS)
+                .idleTimeout(config.getDuration("idle-timeout").toMillis(), TimeUnit.MILLISECONDS)
+                .intercept(metrics.clientInterceptor())
                 .usePlaintext()
                 .build();
+    }
 
-        this.asyncStub = OrderProcessorGrpc.newStub(channel);
+    private static List<String> endpoints(Config config) {
+        List<String> endpoints = new ArrayList<>();
+        for (String endpoint : config.getString("endpoints").split(",")) {
+            if (!endpoint.isBlank()) {
+                endpoints.add(endpoint.trim());
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No order processor endpoints configured");
+        }
+        return endpoints;
+    }
+
+    public void shutdown() {
+        // A channel shut down waits for its calls, so the streams are half-closed to let them end
+        for (OrderStream stream : streams) {
+            stream.halfClose();
+            stream.channel.shutdown();
+        }
+        channel.shutdown();
     }
 
     public CompletionStage<Receipt> processOrder(Order order) {
-        OrderRequest request = convertToOrderRequest(order);
+        return processOrder(order, null);
+    }
+
+    /**
+     * Sends the order with a deadline, {@code call-timeout} from now if none is given. The processor drops the
+     * order once the deadline passes, and so does it when the returned stage is cancelled. Either way the stage
+     * fails and a receipt arriving later is ignored.
+     */
+    public CompletionStage<Receipt> processOrder(Order order, Instant deadline) {
+        PendingOrder pending = enqueue(order, deadline);
+        scheduleDispatch();
+
+        return pending.receipt;
+    }
+
+    public List<CompletionStage<Receipt>> processOrders(List<Order> orders) {
+        List<CompletionStage<Receipt>> receipts = new ArrayList<>(orders.size());
+
+        for (Order order : orders) {
+            receipts.add(enqueue(order, null).receipt);
+        }
+        scheduleDispatch();
+
+        return receipts;
+    }
 
-        CompletableFuture<Receipt> receiptFuture = new CompletableFuture<>();
+    private PendingOrder enqueue(Order order, Instant deadline) {
+        PendingOrder pending = new PendingOrder(OrderProtoConverter.toOrderRequest(order),
+                deadline != null ? toDeadline(deadline) : Deadline.after(callTimeout.toNanos(), TimeUnit.NANOSECONDS));
+
+        // The processor enforces the deadline through the order's timeout_ms, this fails the stage on time
+        // even when the processor cannot be reached
+        Duration remaining = Duration.ofNanos(Math.max(0, pending.deadline.timeRemaining(TimeUnit.NANOSECONDS)));
+        Cancellable timeout = system.scheduler().scheduleOnce(remaining, () -> pending.receipt.completeExceptionally(
+                Status.DEADLINE_EXCEEDED
+                        .withDescription("No receipt for order " + pending.request.getOrderId() + " before its deadline")
+                        .asRuntimeException()), system.executionContext());
+        pending.receipt.whenComplete((receipt, ex) -> timeout.cancel());
+
+        waitingOrders.add(pending);
+        return pending;
+    }
+
+    private void scheduleDispatch() {
+        if (dispatching.compareAndSet(false, true)) {
+            dispatcher.execute(this::dispatch);
+        }
+    }
+
+    private void dispatch() {
+        do {
+            List<PendingOrder> batch = new ArrayList<>();
+            PendingOrder next;
+            while ((next = waitingOrders.poll()) != null) {
+                batch.add(next);
+                if (batch.size() == maxBatchSize) {
+                    send(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            send(batch);
+
+            dispatching.set(false);
+        } while (!waitingOrders.isEmpty() && dispatching.compareAndSet(false, true));
+    }
+
+    private void send(List<PendingOrder> batch) {
+        batch.removeIf(pending -> pending.receipt.isDone());
+
+        if (batch.size() == 1) {
+            PendingOrder single = batch.get(0);
+            if (streaming) {
+                streamFor(single.request.getOrderId()).send(single);
+            } else {
+                processUnary(single);
+            }
+        } else if (batch.size() > 1) {
+            processBatch(batch);
+        }
+    }
+
+    // The order id picks the stream, unless its processor is unreachable, then the next reachable one takes over
+    private OrderStream streamFor(String orderId) {
+        int first = Math.floorMod(orderId.hashCode(), streams.length);
+        for (int i = 0; i < streams.length; i++) {
+            OrderStream stream = streams[(first + i) % streams.length];
+            if (stream.channel.getState(false) != ConnectivityState.TRANSIENT_FAILURE) {
+                return stream;
+            }
+        }
+        return streams[first];
+    }
+
+    private void processUnary(PendingOrder pending) {
+        asyncStub.withDeadline(pending.deadline).processOrder(withTimeout(pending),
+                new ClientResponseObserver<OrderRequest, ReceiptResponse>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<OrderRequest> call) {
+                        pending.receipt.whenComplete((receipt, ex) -> {
+                            if (ex != null) {
+                                call.cancel("Order given up", null);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(ReceiptResponse response) {
+                        pending.receipt.complete(OrderProtoConverter.toReceipt(response, catalog));
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        pending.receipt.completeExceptionally(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+    }
+
+    private void processBatch(List<PendingOrder> batch) {
+        OrderBatchRequest.Builder request = OrderBatchRequest.newBuilder();
+        Map<String, PendingOrder> byOrderId = new HashMap<>();
+        // The call lives as long as the latest order deadline, the processor drops each order at its own
+        Deadline deadline = batch.get(0).deadline;
+        for (PendingOrder pending : batch) {
+            request.addOrders(withTimeout(pending));
+            byOrderId.put(pending.request.getOrderId(), pending);
+            if (pending.deadline.compareTo(deadline) > 0) {
+                deadline = pending.deadline;
+            }
+        }
+
+        OrderProcessorGrpc.OrderProcessorStub stub = asyncStub.withDeadline(deadline);
+        stub.processOrderBatch(request.build(), new ClientResponseObserver<OrderBatchRequest, ReceiptBatchResponse>() {
+            private volatile boolean answered;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<OrderBatchRequest> call) {
+                // Once every order of the batch has been given up before an answer, the call is not needed any more
+                CompletableFuture.allOf(batch.stream().map(pending -> pending.receipt).toArray(CompletableFuture[]::new))
+                        .whenComplete((done, ex) -> {
+                            if (!answered) {
+                                call.cancel("All orders of the batch given up", null);
+                            }
+                        });
+            }
 
-        asyncStub.processOrder(request, new io.grpc.stub.StreamObserver<ReceiptResponse>() {
             @Override
-            public void onNext(ReceiptResponse response) {
-                Receipt receipt = convertToReceipt(response);
-                receiptFuture.complete(receipt);
+            public void onNext(ReceiptBatchResponse response) {
+                answered = true;
+                for (OrderResult result : response.getResultsList()) {
+                    PendingOrder pending = byOrderId.remove(result.getOrderId());
+                    if (pending == null) {
+                        continue;
+                    }
+                    if (result.hasReceipt()) {
+                        pending.receipt.complete(OrderProtoConverter.toReceipt(result.getReceipt(), catalog));
+                    } else {
+                        pending.receipt.completeExceptionally(new IllegalStateException(result.getError()));
+                    }
+                }
             }
 
             @Override
             public void onError(Throwable t) {
-                receiptFuture.completeExceptionally(t);
+                byOrderId.values().forEach(pending -> pending.receipt.completeExceptionally(t));
             }
 
             @Override
             public void onCompleted() {
+                byOrderId.values().forEach(pending -> pending.receipt.completeExceptionally(
+                        new IllegalStateException("No result for order " + pending.request.getOrderId())));
             }
         });
+    }
 
-        return receiptFuture;
+    // The remaining time is taken when the order goes on the wire, time spent waiting here is not granted again
+    private static OrderRequest withTimeout(PendingOrder pending) {
+        long remaining = pending.deadline.timeRemaining(TimeUnit.MILLISECONDS);
+        return pending.request.toBuilder().setTimeoutMs(Math.max(1, remaining)).build();
     }
 
-    private OrderRequest convertToOrderRequest(Order order) {
-        DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
+    private static Deadline toDeadline(Instant deadline) {
+        return Deadline.after(Duration.between(Instant.now(), deadline).toNanos(), TimeUnit.NANOSECONDS);
+    }
 
-        List<OrderItemProto> itemProtos = order.getItems().stream()
-                .map(this::convertToOrderItemProto)
-                .collect(Collectors.toList());
+    /** A ProcessOrders stream, opened on the first order and again on the first order after it closed. */
+    private final class OrderStream {
+        final ManagedChannel channel;
+        private final OrderProcessorGrpc.OrderProcessorStub stub;
 
-        return OrderRequest.newBuilder()
-                .setOrderId(order.getId())
-                .setTimestamp(order.getTimestamp().format(formatter))
-                .addAllItems(itemProtos)
-                .build();
-    }
+        // Guarded by this
+        private final Map<String, PendingOrder> pendingOrders = new HashMap<>();
+        private final Queue<OrderRequest> sendQueue = new ArrayDeque<>();
+        private ClientCallStreamObserver<OrderRequest> requestStream;
 
-    private OrderItemProto convertToOrderItemProto(OrderItem item) {
-        Product product = item.getProduct();
+        OrderStream(ManagedChannel channel) {
+            this.channel = channel;
+            this.stub = OrderProcessorGrpc.newStub(channel);
+        }
 
-        ProductProto productProto = ProductProto.newBuilder()
-                .setId(product.getId())
-                .setName(product.getName())
-                .setPrice(product.getPrice().toString())
-                .setWeight(product.getWeight())
-                .build();
+        void send(PendingOrder pending) {
+            String orderId = pending.request.getOrderId();
 
-        return OrderItemProto.newBuilder()
-                .setProduct(productProto)
-                .setQuantity(item.getQuantity())
-                .build();
-    }
+            synchronized (this) {
+                PendingOrder previous = pendingOrders.putIfAbsent(orderId, pending);
+                if (previous != null) {
+                    previous.receipt.whenComplete(pending::complete);
+                    return;
+                }
+
+                if (requestStream == null) {
+                    open();
+                }
+                sendQueue.add(pending.request);
+                flushSendQueue();
+            }
+
+            // Still pending here means the order timed out or was cancelled. It is forgotten, so a result arriving
+            // later is dropped, and the processor is told to drop it as well
+            pending.receipt.whenComplete((receipt, ex) -> {
+                synchronized (this) {
+                    if (pendingOrders.remove(orderId, pending) && requestStream != null) {
+                        sendQueue.add(OrderRequest.newBuilder().setOrderId(orderId).setCancel(true).build());
+                        flushSendQueue();
+                    }
+                }
+            });
+        }
+
+        synchronized void halfClose() {
+            if (requestStream != null) {
+                requestStream.onCompleted();
+            }
+        }
+
+        private void open() {
+            stub.processOrders(new ClientResponseObserver<OrderRequest, OrderResult>() {
+                private ClientCallStreamObserver<OrderRequest> stream;
+
+                @Override
+                public void beforeStart(ClientCallStreamObserver<OrderRequest> stream) {
+                    this.stream = stream;
+                    requestStream = stream;
+                    stream.setOnReadyHandler(() -> {
+                        synchronized (OrderStream.this) {
+                            flushSendQueue();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(OrderResult result) {
+                    PendingOrder pending;
+                    synchronized (OrderStream.this) {
+                        pending = pendingOrders.remove(result.getOrderId());
+                    }
+                    if (pending == null) {
+                        return;
+                    }
 
-    private Receipt convertToReceipt(ReceiptResponse response) {
-        DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
-        LocalDateTime timestamp = LocalDateTime.parse(response.getTimestamp(), formatter);
+                    if (result.hasReceipt()) {
+                        pending.receipt.complete(OrderProtoConverter.toReceipt(result.getReceipt(), catalog));
+                    } else {
+                        pending.receipt.completeExceptionally(new IllegalStateException(result.getError()));
+                    }
+                }
 
-        List<OrderItem> items = new ArrayList<>();
+                @Override
+                public void onError(Throwable t) {
+                    close(stream, t);
+                }
 
-        for (OrderItemProto itemProto : response.getItemsList()) {
-            ProductProto productProto = itemProto.getProduct();
+                @Override
+                public void onCompleted() {
+                    close(stream, new IllegalStateException("Order stream closed by the server"));
+                }
+            });
+        }
+
+        private void flushSendQueue() {
+            // Only hand orders to the transport while it is ready, the rest waits for the next onReady
+            while (requestStream != null && requestStream.isReady() && !sendQueue.isEmpty()) {
+                OrderRequest request = sendQueue.poll();
+                if (request.getCancel()) {
+                    requestStream.onNext(request);
+                    continue;
+                }
+                // Orders that timed out while queued are not sent at all
+                PendingOrder pending = pendingOrders.get(request.getOrderId());
+                if (pending != null) {
+                    requestStream.onNext(withTimeout(pending));
+                }
+            }
+        }
+
+        private void close(ClientCallStreamObserver<OrderRequest> stream, Throwable cause) {
+            Map<String, PendingOrder> failed;
+
+            synchronized (this) {
+                if (requestStream != stream) {
+                    return;
+                }
+                requestStream = null;
+                sendQueue.clear();
+                failed = new HashMap<>(pendingOrders);
+                pendingOrders.clear();
+            }
+
+            failed.values().forEach(pending -> pending.receipt.completeExceptionally(cause));
+        }
+    }
 
-            Product product = new Product(
-                    productProto.getId(),
-                    productProto.getName(),
-                    new BigDecimal(productProto.getPrice()),
-                    productProto.getWeight()
-            );
+    private static final class PendingOrder {
+        final OrderRequest request;
+        final Deadline deadline;
+        final CompletableFuture<Receipt> receipt = new CompletableFuture<>();
 
-            items.add(new OrderItem(product, itemProto.getQuantity()));
+        PendingOrder(OrderRequest request, Deadline deadline) {
+            this.request = request;
+            this.deadline = deadline;
         }
 
-        return new Receipt(
-                response.getOrderId(),
-                timestamp,
-                items,
-                new BigDecimal(response.getTotalPrice())
-        );
+        void complete(Receipt value, Throwable error) {
+            if (error != null) {
+                receipt.completeExceptionally(error);
+            } else {
+                receipt.complete(value);
+            }
+        }
     }
-}
\ No newline at end of file
+}
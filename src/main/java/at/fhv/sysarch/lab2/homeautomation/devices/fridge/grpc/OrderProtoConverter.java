@@ -0,0 +1,92 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Order;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.OrderItem;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Product;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.ProductCatalog;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Receipt;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class OrderProtoConverter {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_DATE_TIME;
+
+    private OrderProtoConverter() {
+    }
+
+    public static OrderRequest toOrderRequest(Order order) {
+        OrderRequest.Builder builder = OrderRequest.newBuilder()
+                .setOrderId(order.getId())
+                .setTimestamp(order.getTimestamp().format(FORMATTER));
+
+        for (OrderItem item : order.getItems()) {
+            builder.addItems(toOrderItemProto(item));
+        }
+
+        return builder.build();
+    }
+
+    public static Order toOrder(OrderRequest request, ProductCatalog catalog) {
+        return new Order(
+                request.getOrderId(),
+                LocalDateTime.parse(request.getTimestamp(), FORMATTER),
+                toOrderItems(request.getItemsList(), catalog)
+        );
+    }
+
+    public static Receipt toReceipt(ReceiptResponse response, ProductCatalog catalog) {
+        return new Receipt(
+                response.getOrderId(),
+                LocalDateTime.parse(response.getTimestamp(), FORMATTER),
+                toOrderItems(response.getItemsList(), catalog),
+                new BigDecimal(response.getTotalPrice())
+        );
+    }
+
+    private static OrderItemProto toOrderItemProto(OrderItem item) {
+        Product product = item.getProduct();
+
+        ProductProto productProto = ProductProto.newBuilder()
+                .setId(product.getId())
+                .setName(product.getName())
+                .setPrice(product.getPrice().toString())
+                .setWeight(product.getWeight())
+                .build();
+
+        return OrderItemProto.newBuilder()
+                .setProduct(productProto)
+                .setQuantity(item.getQuantity())
+                .build();
+    }
+
+    private static List<OrderItem> toOrderItems(List<OrderItemProto> itemProtos, ProductCatalog catalog) {
+        List<OrderItem> items = new ArrayList<>(itemProtos.size());
+
+        for (OrderItemProto itemProto : itemProtos) {
+            ProductProto productProto = itemProto.getProduct();
+            BigDecimal price = new BigDecimal(productProto.getPrice());
+
+            // The price sent wins, e.g. the processor's price on a receipt. Known products at that price
+            // are shared, others keep the canonical id so they still match the same inventory entry.
+            Product product = catalog.findById(productProto.getId())
+                    .map(known -> known.getPrice().compareTo(price) == 0
+                            ? known
+                            : new Product(known.getId(), known.getName(), price, known.getWeight()))
+                    .orElseGet(() -> catalog.intern(new Product(
+                            productProto.getId(),
+                            productProto.getName(),
+                            price,
+                            productProto.getWeight()
+                    )));
+
+            items.add(new OrderItem(product, itemProto.getQuantity()));
+        }
+
+        return items;
+    }
+}
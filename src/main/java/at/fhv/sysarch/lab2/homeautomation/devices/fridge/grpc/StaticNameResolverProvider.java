@@ -0,0 +1,99 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import io.grpc.Status;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resolves targets of the form {@code static:///host1:port1,host2:port2} to a fixed list of
+ * addresses, so a channel can balance over several order processor instances.
+ */
+final class StaticNameResolverProvider extends NameResolverProvider {
+
+    static final String SCHEME = "static";
+
+    static String target(List<String> endpoints) {
+        return SCHEME + ":///" + String.join(",", endpoints);
+    }
+
+    @Override
+    protected boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    protected int priority() {
+        return 5;
+    }
+
+    @Override
+    public String getDefaultScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    protected Collection<Class<? extends SocketAddress>> getProducedSocketAddressTypes() {
+        return Collections.singleton(InetSocketAddress.class);
+    }
+
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+        if (!SCHEME.equals(targetUri.getScheme())) {
+            return null;
+        }
+
+        String path = targetUri.getPath();
+        String endpoints = path.startsWith("/") ? path.substring(1) : path;
+
+        return new NameResolver() {
+            private Listener2 listener;
+
+            @Override
+            public String getServiceAuthority() {
+                return "order-processor";
+            }
+
+            @Override
+            public void start(Listener2 listener) {
+                this.listener = listener;
+                resolve();
+            }
+
+            @Override
+            public void refresh() {
+                resolve();
+            }
+
+            private void resolve() {
+                try {
+                    List<EquivalentAddressGroup> groups = new ArrayList<>();
+                    for (String endpoint : endpoints.split(",")) {
+                        String trimmed = endpoint.trim();
+                        int separator = trimmed.lastIndexOf(':');
+                        String host = trimmed.substring(0, separator);
+                        int port = Integer.parseInt(trimmed.substring(separator + 1));
+                        groups.add(new EquivalentAddressGroup(new InetSocketAddress(host, port)));
+                    }
+                    listener.onResult(ResolutionResult.newBuilder().setAddresses(groups).build());
+                } catch (RuntimeException e) {
+                    listener.onError(Status.UNAVAILABLE
+                            .withDescription("Invalid order processor endpoints: " + endpoints)
+                            .withCause(e));
+                }
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+    }
+}
@@ -4,7 +4,10 @@ import  akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.*;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilter;
+import at.fhv.sysarch.lab2.homeautomation.devices.SensorFilterMetrics;
 import at.fhv.sysarch.lab2.homeautomation.environment.EnvironmentSimulator;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeries;
 
 import java.time.Duration;
 
@@ -32,9 +35,15 @@ public class WeatherSensor extends AbstractBehavior<WeatherSensor.WeatherCommand
 
     public static final class EnvironmentWeatherUpdate implements WeatherCommand {
         final EnvironmentSimulator.WeatherCondition condition;
+        final long timestampMillis;
 
         public EnvironmentWeatherUpdate(EnvironmentSimulator.WeatherCondition condition) {
+            this(condition, System.currentTimeMillis());
+        }
+
+        public EnvironmentWeatherUpdate(EnvironmentSimulator.WeatherCondition condition, long timestampMillis) {
             this.condition = condition;
+            this.timestampMillis = timestampMillis;
         }
 
         public EnvironmentSimulator.WeatherCondition getCondition() {
@@ -44,21 +53,34 @@ public class WeatherSensor extends AbstractBehavior<WeatherSensor.WeatherCommand
 
     private final ActorRef<Blinds.BlindsCommand> blinds;
     private final TimerScheduler<WeatherCommand> timers;
+    private final SensorFilter<EnvironmentSimulator.WeatherCondition> filter;
+    // Conditions are recorded as their ordinal
+    private final TimeSeries history;
     private boolean simulateMode = false;
     private EnvironmentSimulator.WeatherCondition lastCondition = EnvironmentSimulator.WeatherCondition.CLOUDY;
 
-    public static Behavior<WeatherCommand> create(ActorRef<Blinds.BlindsCommand> blinds) {
+    public static Behavior<WeatherCommand> create(String identifier,
+                                                  ActorRef<Blinds.BlindsCommand> blinds,
+                                                  SensorFilterMetrics filterMetrics,
+                                                  TimeSeries history) {
         return Behaviors.setup(context -> Behaviors.withTimers(timers ->
-                new WeatherSensor(context, blinds, timers)
+                new WeatherSensor(context, identifier, blinds, timers, filterMetrics, history)
         ));
     }
 
     private WeatherSensor(ActorContext<WeatherCommand> context,
+                          String identifier,
                           ActorRef<Blinds.BlindsCommand> blinds,
-                          TimerScheduler<WeatherCommand> timers) {
+                          TimerScheduler<WeatherCommand> timers,
+                          SensorFilterMetrics filterMetrics,
+                          TimeSeries history) {
         super(context);
         this.blinds = blinds;
         this.timers = timers;
+        this.history = history;
+        this.filter = SensorFilter.onChange(SensorFilter.settings(
+                context.getSystem().settings().config().getConfig("home-automation.sensor-filters"),
+                "weather", identifier), filterMetrics.getWeather());
         getContext().getLog().info("WeatherSensor started in manual mode");
     }
 
@@ -77,6 +99,9 @@ public class WeatherSensor extends AbstractBehavior<WeatherSensor.WeatherCommand
         if (!simulateMode) {
             getContext().getLog().info("Manual weather input: {}", r.condition);
             lastCondition = r.condition;
+            long now = System.currentTimeMillis();
+            history.record(now, r.condition.ordinal());
+            filter.forwarded(r.condition, now);
             notifyBlinds(r.condition);
         }
         return this;
@@ -102,15 +127,21 @@ public class WeatherSensor extends AbstractBehavior<WeatherSensor.WeatherCommand
             EnvironmentSimulator.WeatherCondition simulated = conditions[(int) (Math.random() * conditions.length)];
             getContext().getLog().info("Simulated weather: {}", simulated);
             lastCondition = simulated;
-            notifyBlinds(simulated);
+            long now = System.currentTimeMillis();
+            history.record(now, simulated.ordinal());
+            if (filter.shouldForward(simulated, now)) {
+                notifyBlinds(simulated);
+            }
         }
         return this;
     }
 
+    // Forwarded in both modes, environment readings only arrive while an environment source is active
     private Behavior<WeatherCommand> onEnvironmentWeatherUpdate(EnvironmentWeatherUpdate msg) {
-        if (simulateMode) {
-            getContext().getLog().info("Environment weather update: {}", msg.getCondition());
-            lastCondition = msg.getCondition();
+        getContext().getLog().debug("Environment weather update: {}", msg.getCondition());
+        lastCondition = msg.getCondition();
+        history.record(msg.timestampMillis, msg.getCondition().ordinal());
+        if (filter.shouldForward(msg.getCondition(), msg.timestampMillis)) {
             notifyBlinds(msg.getCondition());
         }
         return this;
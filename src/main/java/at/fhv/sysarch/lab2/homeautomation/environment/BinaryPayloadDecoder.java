@@ -0,0 +1,240 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import java.util.Arrays;
+
+/** Reads the binary environment payloads described in {@code telemetry.proto}. */
+final class BinaryPayloadDecoder {
+
+    @FunctionalInterface
+    interface TemperatureSink {
+        void accept(long timestampMillis, double temperature);
+    }
+
+    @FunctionalInterface
+    interface ConditionSink {
+        void accept(long timestampMillis, EnvironmentSimulator.WeatherCondition condition);
+    }
+
+    static final byte MARKER = (byte) 0xFE;
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 2;
+
+    // Field numbers and wire types of telemetry.proto
+    private static final int START_TIME_FIELD = 1;
+    private static final int OFFSETS_FIELD = 2;
+    private static final int VALUES_FIELD = 3;
+    private static final int CONDITIONS_FIELD = 3;
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+
+    private static final EnvironmentSimulator.WeatherCondition[] CONDITIONS = EnvironmentSimulator.WeatherCondition.values();
+
+    private BinaryPayloadDecoder() {
+    }
+
+    /** Whether the payload carries the binary marker, JSON documents never start with this byte. */
+    static boolean isBinary(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && payload[0] == MARKER;
+    }
+
+    /**
+     * Hands every temperature sample of a {@code TemperatureBatch} payload to the sink, returns their number.
+     * Batches without a start time are stamped with {@code receivedAtMillis}.
+     */
+    static int readTemperatures(byte[] payload, long receivedAtMillis, TemperatureSink sink) {
+        WireReader reader = open(payload);
+        Timestamps timestamps = new Timestamps(receivedAtMillis);
+        float[] values = new float[8];
+        int count = 0;
+        while (reader.hasMore()) {
+            int tag = (int) reader.readVarint();
+            if (tag >>> 3 != VALUES_FIELD) {
+                timestamps.readOrSkip(reader, tag);
+            } else if ((tag & 7) == LENGTH_DELIMITED) {
+                int end = reader.limitOf((int) reader.readVarint());
+                if ((end - reader.position) % 4 != 0) {
+                    throw new IllegalArgumentException("Truncated packed temperature values");
+                }
+                while (reader.position < end) {
+                    values = grow(values, count);
+                    values[count++] = Float.intBitsToFloat(reader.readFixed32());
+                }
+            } else if ((tag & 7) == FIXED32) {
+                values = grow(values, count);
+                values[count++] = Float.intBitsToFloat(reader.readFixed32());
+            } else {
+                throw new IllegalArgumentException("Unexpected wire type of temperature values: " + (tag & 7));
+            }
+        }
+        // Values and offsets may come in any order, so samples are only handed out once both are read
+        for (int i = 0; i < count; i++) {
+            sink.accept(timestamps.of(i), values[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Hands every condition of a {@code WeatherBatch} payload to the sink, returns their number.
+     * Batches without a start time are stamped with {@code receivedAtMillis}.
+     */
+    static int readConditions(byte[] payload, long receivedAtMillis, ConditionSink sink) {
+        WireReader reader = open(payload);
+        Timestamps timestamps = new Timestamps(receivedAtMillis);
+        int[] numbers = new int[8];
+        int count = 0;
+        while (reader.hasMore()) {
+            int tag = (int) reader.readVarint();
+            if (tag >>> 3 != CONDITIONS_FIELD) {
+                timestamps.readOrSkip(reader, tag);
+            } else if ((tag & 7) == LENGTH_DELIMITED) {
+                int end = reader.limitOf((int) reader.readVarint());
+                while (reader.position < end) {
+                    numbers = grow(numbers, count);
+                    numbers[count++] = (int) reader.readVarint();
+                }
+            } else if ((tag & 7) == VARINT) {
+                numbers = grow(numbers, count);
+                numbers[count++] = (int) reader.readVarint();
+            } else {
+                throw new IllegalArgumentException("Unexpected wire type of weather conditions: " + (tag & 7));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            sink.accept(timestamps.of(i), condition(numbers[i]));
+        }
+        return count;
+    }
+
+    private static float[] grow(float[] array, int size) {
+        return size < array.length ? array : Arrays.copyOf(array, array.length * 2);
+    }
+
+    private static int[] grow(int[] array, int size) {
+        return size < array.length ? array : Arrays.copyOf(array, array.length * 2);
+    }
+
+    private static WireReader open(byte[] payload) {
+        if (!isBinary(payload)) {
+            throw new IllegalArgumentException("Payload has no binary telemetry marker");
+        }
+        if (payload[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary telemetry version: " + payload[1]);
+        }
+        return new WireReader(payload, HEADER_LENGTH);
+    }
+
+    // Proto enum numbers are the WeatherCondition ordinals shifted by the UNSPECIFIED entry
+    private static EnvironmentSimulator.WeatherCondition condition(long number) {
+        if (number < 1 || number > CONDITIONS.length) {
+            throw new IllegalArgumentException("Unknown weather condition number: " + number);
+        }
+        return CONDITIONS[(int) number - 1];
+    }
+
+    // start_time_ms and offsets_ms of a batch, samples without an offset are stamped with the start time
+    private static final class Timestamps {
+        long startMillis;
+        int[] offsets = new int[8];
+        int count;
+
+        Timestamps(long receivedAtMillis) {
+            this.startMillis = receivedAtMillis;
+        }
+
+        void readOrSkip(WireReader reader, int tag) {
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+            if (field == START_TIME_FIELD && wireType == VARINT) {
+                long start = reader.readVarint();
+                if (start != 0) {
+                    startMillis = start;
+                }
+            } else if (field == OFFSETS_FIELD && wireType == LENGTH_DELIMITED) {
+                int end = reader.limitOf((int) reader.readVarint());
+                while (reader.position < end) {
+                    addOffset(reader.readVarint());
+                }
+            } else if (field == OFFSETS_FIELD && wireType == VARINT) {
+                addOffset(reader.readVarint());
+            } else {
+                reader.skip(wireType);
+            }
+        }
+
+        long of(int sample) {
+            return sample < count ? startMillis + (offsets[sample] & 0xFFFFFFFFL) : startMillis;
+        }
+
+        private void addOffset(long offset) {
+            offsets = grow(offsets, count);
+            offsets[count++] = (int) offset;
+        }
+    }
+
+    private static final class WireReader {
+        final byte[] buffer;
+        int position;
+
+        WireReader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        boolean hasMore() {
+            return position < buffer.length;
+        }
+
+        int limitOf(int length) {
+            if (length < 0 || length > buffer.length - position) {
+                throw new IllegalArgumentException("Truncated binary telemetry payload");
+            }
+            return position + length;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= buffer.length) {
+                    throw new IllegalArgumentException("Truncated binary telemetry payload");
+                }
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in binary telemetry payload");
+        }
+
+        int readFixed32() {
+            limitOf(4);
+            int value = (buffer[position] & 0xFF)
+                    | (buffer[position + 1] & 0xFF) << 8
+                    | (buffer[position + 2] & 0xFF) << 16
+                    | (buffer[position + 3] & 0xFF) << 24;
+            position += 4;
+            return value;
+        }
+
+        void skip(int wireType) {
+            switch (wireType) {
+                case VARINT:
+                    readVarint();
+                    break;
+                case FIXED64:
+                    position = limitOf(8);
+                    break;
+                case LENGTH_DELIMITED:
+                    position = limitOf((int) readVarint());
+                    break;
+                case FIXED32:
+                    position = limitOf(4);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported wire type in binary telemetry payload: " + wireType);
+            }
+        }
+    }
+}
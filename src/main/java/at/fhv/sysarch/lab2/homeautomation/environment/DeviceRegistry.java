@@ -0,0 +1,42 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import akka.actor.typed.ActorRef;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Actors receiving the readings of a device, keyed by the device id taken from the MQTT topic. */
+public final class DeviceRegistry {
+
+    private final ConcurrentMap<String, ActorRef<EnvironmentSimulator.TemperatureCommand>> temperatureDevices =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ActorRef<EnvironmentSimulator.WeatherCommand>> weatherDevices =
+            new ConcurrentHashMap<>();
+
+    public void registerTemperatureDevice(String deviceId, ActorRef<EnvironmentSimulator.TemperatureCommand> device) {
+        temperatureDevices.put(deviceId, device);
+    }
+
+    public void registerWeatherDevice(String deviceId, ActorRef<EnvironmentSimulator.WeatherCommand> device) {
+        weatherDevices.put(deviceId, device);
+    }
+
+    public void unregister(String deviceId) {
+        temperatureDevices.remove(deviceId);
+        weatherDevices.remove(deviceId);
+    }
+
+    public int size() {
+        return temperatureDevices.size() + weatherDevices.size();
+    }
+
+    ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureDevice(
+            String deviceId, ActorRef<EnvironmentSimulator.TemperatureCommand> fallback) {
+        return temperatureDevices.getOrDefault(deviceId, fallback);
+    }
+
+    ActorRef<EnvironmentSimulator.WeatherCommand> weatherDevice(
+            String deviceId, ActorRef<EnvironmentSimulator.WeatherCommand> fallback) {
+        return weatherDevices.getOrDefault(deviceId, fallback);
+    }
+}
@@ -0,0 +1,47 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import com.typesafe.config.Config;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.config.MemoryConfig;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/** Moquette broker running inside the JVM, used instead of an external broker when enabled. */
+public final class EmbeddedMqttBroker {
+
+    private final Server server;
+
+    private EmbeddedMqttBroker(Server server) {
+        this.server = server;
+    }
+
+    /** Whether the given {@code home-automation.environment.mqtt} config asks for an embedded broker. */
+    public static boolean isEnabled(Config mqttConfig) {
+        return mqttConfig.getBoolean("embedded-broker.enabled");
+    }
+
+    /** The URL clients use to reach the embedded broker configured in {@code home-automation.environment.mqtt}. */
+    static String url(Config mqttConfig) {
+        Config broker = mqttConfig.getConfig("embedded-broker");
+        return "tcp://" + broker.getString("host") + ":" + broker.getInt("port");
+    }
+
+    public static EmbeddedMqttBroker start(Config mqttConfig) throws IOException {
+        Config broker = mqttConfig.getConfig("embedded-broker");
+        Properties properties = new Properties();
+        properties.setProperty(IConfig.HOST_PROPERTY_NAME, broker.getString("host"));
+        properties.setProperty(IConfig.PORT_PROPERTY_NAME, String.valueOf(broker.getInt("port")));
+        properties.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        properties.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+
+        Server server = new Server();
+        server.startServer(new MemoryConfig(properties));
+        return new EmbeddedMqttBroker(server);
+    }
+
+    public void stop() {
+        server.stopServer();
+    }
+}
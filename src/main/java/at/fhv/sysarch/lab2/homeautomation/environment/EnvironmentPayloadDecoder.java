@@ -0,0 +1,74 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/** Reads single fields from JSON environment payloads without building a tree or a string. */
+final class EnvironmentPayloadDecoder {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final EnvironmentSimulator.WeatherCondition[] CONDITIONS = EnvironmentSimulator.WeatherCondition.values();
+
+    private EnvironmentPayloadDecoder() {
+    }
+
+    /** The numeric value of the top-level field, or {@code NaN} if the payload has none. */
+    static double readDouble(byte[] payload, String field) throws IOException {
+        try (JsonParser parser = JSON.createParser(payload)) {
+            if (seek(parser, field) && parser.currentToken().isNumeric()) {
+                return parser.getDoubleValue();
+            }
+            return Double.NaN;
+        }
+    }
+
+    /** The weather condition in the top-level field, or {@code null} if the payload has none. */
+    static EnvironmentSimulator.WeatherCondition readCondition(byte[] payload, String field) throws IOException {
+        try (JsonParser parser = JSON.createParser(payload)) {
+            if (!seek(parser, field) || parser.currentToken() != JsonToken.VALUE_STRING) {
+                return null;
+            }
+
+            char[] text = parser.getTextCharacters();
+            int offset = parser.getTextOffset();
+            int length = parser.getTextLength();
+            for (EnvironmentSimulator.WeatherCondition condition : CONDITIONS) {
+                if (equalsIgnoreCase(condition.name(), text, offset, length)) {
+                    return condition;
+                }
+            }
+            throw new IllegalArgumentException("Unknown weather condition: " + new String(text, offset, length));
+        }
+    }
+
+    // Leaves the parser on the value of the field
+    private static boolean seek(JsonParser parser, String field) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            if (field.equals(name)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    private static boolean equalsIgnoreCase(String name, char[] text, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toUpperCase(text[offset + i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
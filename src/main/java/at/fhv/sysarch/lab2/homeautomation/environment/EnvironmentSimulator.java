@@ -54,27 +54,47 @@ public class EnvironmentSimulator extends AbstractBehavior<EnvironmentSimulator.
     public interface TemperatureCommand {}
     public static final class TemperatureUpdate implements TemperatureCommand {
         private final double temperature;
+        private final long timestampMillis;
 
         public TemperatureUpdate(double temperature) {
+            this(temperature, System.currentTimeMillis());
+        }
+
+        public TemperatureUpdate(double temperature, long timestampMillis) {
             this.temperature = temperature;
+            this.timestampMillis = timestampMillis;
         }
 
         public double getTemperature() {
             return temperature;
         }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
     }
 
     public interface WeatherCommand {}
     public static final class WeatherUpdate implements WeatherCommand {
         private final WeatherCondition condition;
+        private final long timestampMillis;
 
         public WeatherUpdate(WeatherCondition condition) {
+            this(condition, System.currentTimeMillis());
+        }
+
+        public WeatherUpdate(WeatherCondition condition, long timestampMillis) {
             this.condition = condition;
+            this.timestampMillis = timestampMillis;
         }
 
         public WeatherCondition getCondition() {
             return condition;
         }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
     }
 
     private EnvironmentSimulator(ActorContext<EnvironmentCommand> context,
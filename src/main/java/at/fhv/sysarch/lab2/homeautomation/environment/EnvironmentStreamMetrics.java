@@ -0,0 +1,130 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/** Counters of the environment telemetry stream and its MQTT session, published through Micrometer. */
+public class EnvironmentStreamMetrics implements MeterBinder {
+
+    final LongAdder received = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder unrouted = new LongAdder();
+    final LongAdder binary = new LongAdder();
+    final LongAdder decodeFailures = new LongAdder();
+    final LongAdder conflated = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+
+    private volatile IntSupplier queueSize = () -> 0;
+    private volatile IntSupplier spoolSize = () -> 0;
+    private volatile long lastReconnectMillis;
+    private volatile double lastBacklogDrainRate;
+
+    void setQueueSize(IntSupplier queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    void setSpoolSize(IntSupplier spoolSize) {
+        this.spoolSize = spoolSize;
+    }
+
+    void recordReconnect(long millis) {
+        reconnects.increment();
+        lastReconnectMillis = millis;
+    }
+
+    void recordBacklogDrain(double messagesPerSecond) {
+        lastBacklogDrainRate = messagesPerSecond;
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getUnrouted() {
+        return unrouted.sum();
+    }
+
+    public long getBinary() {
+        return binary.sum();
+    }
+
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    public long getConflated() {
+        return conflated.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public int getQueueSize() {
+        return queueSize.getAsInt();
+    }
+
+    public int getSpoolSize() {
+        return spoolSize.getAsInt();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
+    public double getLastBacklogDrainRate() {
+        return lastBacklogDrainRate;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("environment.stream.received", this, EnvironmentStreamMetrics::getReceived)
+                .register(registry);
+        FunctionCounter.builder("environment.stream.dropped", this, EnvironmentStreamMetrics::getDropped)
+                .description("QoS 0 messages dropped because the spool was full")
+                .register(registry);
+        FunctionCounter.builder("environment.stream.unrouted", this, EnvironmentStreamMetrics::getUnrouted)
+                .description("Messages on topics matching none of the subscribed filters")
+                .register(registry);
+        FunctionCounter.builder("environment.stream.binary", this, EnvironmentStreamMetrics::getBinary)
+                .description("Messages received in the binary batch format instead of JSON")
+                .register(registry);
+        FunctionCounter.builder("environment.stream.decode.failures", this, EnvironmentStreamMetrics::getDecodeFailures)
+                .register(registry);
+        FunctionCounter.builder("environment.stream.conflated", this, EnvironmentStreamMetrics::getConflated)
+                .description("Readings replaced by a newer reading of the same device before delivery")
+                .register(registry);
+        FunctionCounter.builder("environment.stream.delivered", this, EnvironmentStreamMetrics::getDelivered)
+                .register(registry);
+        Gauge.builder("environment.stream.queue.size", this, EnvironmentStreamMetrics::getQueueSize)
+                .register(registry);
+        Gauge.builder("environment.stream.spool.size", this, EnvironmentStreamMetrics::getSpoolSize)
+                .register(registry);
+        FunctionCounter.builder("environment.mqtt.reconnects", this, EnvironmentStreamMetrics::getReconnects)
+                .register(registry);
+        TimeGauge.builder("environment.mqtt.reconnect.time", this, TimeUnit.MILLISECONDS,
+                        EnvironmentStreamMetrics::getLastReconnectMillis)
+                .description("Time from losing the broker connection to the last successful reconnect")
+                .register(registry);
+        Gauge.builder("environment.mqtt.backlog.drain.rate", this, EnvironmentStreamMetrics::getLastBacklogDrainRate)
+                .description("Messages per second the last spooled backlog was drained at")
+                .baseUnit("messages/s")
+                .register(registry);
+    }
+}
@@ -0,0 +1,190 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import akka.actor.typed.ActorRef;
+import akka.japi.Pair;
+import akka.stream.*;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Backpressured pipeline from the MQTT client to the device actors: bounded queue, parallel decode,
+ * per-device conflation and a throttle per partition. Samples of binary batches are not conflated.
+ */
+final class EnvironmentTelemetryStream {
+
+    private final BoundedSourceQueue<RawMessage> queue;
+    private final UniqueKillSwitch killSwitch;
+    private final EnvironmentStreamMetrics metrics;
+
+    private enum ReadingType { TEMPERATURE, WEATHER }
+
+    private EnvironmentTelemetryStream(BoundedSourceQueue<RawMessage> queue, UniqueKillSwitch killSwitch,
+                                       EnvironmentStreamMetrics metrics) {
+        this.queue = queue;
+        this.killSwitch = killSwitch;
+        this.metrics = metrics;
+    }
+
+    static EnvironmentTelemetryStream start(Config config, Materializer materializer, Executor decodeExecutor,
+                                            EnvironmentStreamMetrics metrics, Logger log,
+                                            List<String> temperatureTopics, List<String> weatherTopics,
+                                            DeviceRegistry devices,
+                                            ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener,
+                                            ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener) {
+        TopicTrie<ReadingType> routes = new TopicTrie<>();
+        temperatureTopics.forEach(filter -> routes.add(filter, ReadingType.TEMPERATURE));
+        weatherTopics.forEach(filter -> routes.add(filter, ReadingType.WEATHER));
+
+        int partitions = config.getInt("partitions");
+        int throttleElements = config.getInt("throttle-elements");
+        Duration throttlePer = config.getDuration("throttle-per");
+        int maxBatchedSamples = config.getInt("max-batched-samples");
+
+        Pair<BoundedSourceQueue<RawMessage>, UniqueKillSwitch> materialized =
+                Source.<RawMessage>queue(config.getInt("buffer-size"))
+                        .viaMat(KillSwitches.<RawMessage>single(), Keep.both())
+                        .mapAsync(config.getInt("decode-parallelism"), raw -> CompletableFuture.supplyAsync(
+                                () -> decode(raw, routes, metrics, log), decodeExecutor))
+                        .mapConcat(readings -> readings)
+                        .groupBy(partitions, reading -> Math.floorMod(reading.topic.hashCode(), partitions))
+                        .<Map<String, ArrayDeque<Reading>>>conflateWithSeed(reading -> {
+                            Map<String, ArrayDeque<Reading>> waiting = new LinkedHashMap<>();
+                            waiting.computeIfAbsent(reading.topic, topic -> new ArrayDeque<>()).add(reading);
+                            return waiting;
+                        }, (waiting, reading) -> {
+                            conflate(waiting.computeIfAbsent(reading.topic, topic -> new ArrayDeque<>()),
+                                    reading, maxBatchedSamples, metrics);
+                            return waiting;
+                        })
+                        .throttle(throttleElements, throttlePer)
+                        .mapConcat(waiting -> {
+                            List<Reading> readings = new ArrayList<>();
+                            waiting.values().forEach(readings::addAll);
+                            return readings;
+                        })
+                        .mergeSubstreams()
+                        .toMat(Sink.foreach(reading -> {
+                            if (reading.temperature != null) {
+                                devices.temperatureDevice(reading.deviceId, temperatureListener).tell(reading.temperature);
+                            } else {
+                                devices.weatherDevice(reading.deviceId, weatherListener).tell(reading.weather);
+                            }
+                            metrics.delivered.increment();
+                        }), Keep.left())
+                        .run(materializer);
+
+        BoundedSourceQueue<RawMessage> queue = materialized.first();
+        metrics.setQueueSize(queue::size);
+        return new EnvironmentTelemetryStream(queue, materialized.second(), metrics);
+    }
+
+    /** Hands a message to the stream without blocking, {@code false} if the queue is full or closed. */
+    boolean offer(String topic, byte[] payload) {
+        return queue.offer(new RawMessage(topic, payload, System.currentTimeMillis())) == QueueOfferResult.enqueued();
+    }
+
+    void stop() {
+        metrics.setQueueSize(() -> 0);
+        killSwitch.shutdown();
+    }
+
+    // A single reading replaces the ones waiting for its device, batched samples queue up behind them
+    private static void conflate(ArrayDeque<Reading> waiting, Reading reading, int maxBatchedSamples,
+                                 EnvironmentStreamMetrics metrics) {
+        if (!reading.batched) {
+            metrics.conflated.add(waiting.size());
+            waiting.clear();
+        } else if (waiting.size() == maxBatchedSamples) {
+            metrics.conflated.increment();
+            waiting.poll();
+        }
+        waiting.add(reading);
+    }
+
+    private static List<Reading> decode(RawMessage raw, TopicTrie<ReadingType> routes,
+                                        EnvironmentStreamMetrics metrics, Logger log) {
+        TopicTrie.Match<ReadingType> route = routes.match(raw.topic);
+        if (route == null) {
+            metrics.unrouted.increment();
+            return Collections.emptyList();
+        }
+        try {
+            if (BinaryPayloadDecoder.isBinary(raw.payload)) {
+                metrics.binary.increment();
+                List<Reading> readings = new ArrayList<>();
+                if (route.value == ReadingType.TEMPERATURE) {
+                    BinaryPayloadDecoder.readTemperatures(raw.payload, raw.receivedAtMillis,
+                            (timestamp, temperature) -> readings.add(new Reading(raw.topic, route.deviceId, true,
+                                    new EnvironmentSimulator.TemperatureUpdate(temperature, timestamp), null)));
+                } else {
+                    BinaryPayloadDecoder.readConditions(raw.payload, raw.receivedAtMillis,
+                            (timestamp, condition) -> readings.add(new Reading(raw.topic, route.deviceId, true,
+                                    null, new EnvironmentSimulator.WeatherUpdate(condition, timestamp))));
+                }
+                if (!readings.isEmpty()) {
+                    return readings;
+                }
+            } else if (route.value == ReadingType.TEMPERATURE) {
+                double temperature = EnvironmentPayloadDecoder.readDouble(raw.payload, "value");
+                if (!Double.isNaN(temperature)) {
+                    return Collections.singletonList(new Reading(raw.topic, route.deviceId, false,
+                            new EnvironmentSimulator.TemperatureUpdate(temperature, raw.receivedAtMillis), null));
+                }
+            } else {
+                EnvironmentSimulator.WeatherCondition condition = EnvironmentPayloadDecoder.readCondition(raw.payload, "condition");
+                if (condition != null) {
+                    return Collections.singletonList(new Reading(raw.topic, route.deviceId, false,
+                            null, new EnvironmentSimulator.WeatherUpdate(condition, raw.receivedAtMillis)));
+                }
+            }
+            log.warn("Ignoring message without a reading on topic {}", raw.topic);
+        } catch (Exception e) {
+            log.warn("Could not decode message on topic {}: {}", raw.topic, e.getMessage());
+        }
+        metrics.decodeFailures.increment();
+        return Collections.emptyList();
+    }
+
+    private static final class RawMessage {
+        final String topic;
+        final byte[] payload;
+        final long receivedAtMillis;
+
+        RawMessage(String topic, byte[] payload, long receivedAtMillis) {
+            this.topic = topic;
+            this.payload = payload;
+            this.receivedAtMillis = receivedAtMillis;
+        }
+    }
+
+    private static final class Reading {
+        final String topic;
+        final String deviceId;
+        // Part of a binary batch, queued next to the other samples waiting for the device
+        final boolean batched;
+        final EnvironmentSimulator.TemperatureUpdate temperature;
+        final EnvironmentSimulator.WeatherUpdate weather;
+
+        Reading(String topic, String deviceId, boolean batched, EnvironmentSimulator.TemperatureUpdate temperature,
+                EnvironmentSimulator.WeatherUpdate weather) {
+            this.topic = topic;
+            this.deviceId = deviceId;
+            this.batched = batched;
+            this.temperature = temperature;
+            this.weather = weather;
+        }
+    }
+}
@@ -7,11 +7,16 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.stream.Materializer;
+import com.typesafe.config.Config;
 import org.eclipse.paho.client.mqttv3.*;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
-import java.nio.charset.StandardCharsets;
-import org.json.JSONObject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class MqttEnvironmentSource extends AbstractBehavior<MqttEnvironmentSource.MqttCommand> {
 
@@ -20,29 +25,97 @@ public class MqttEnvironmentSource extends AbstractBehavior<MqttEnvironmentSourc
     public static final class Connect implements MqttCommand {}
     public static final class Disconnect implements MqttCommand {}
 
-    private static final String BROKER_URL = "tcp://10.0.40.161:1883";
-    private static final String CLIENT_ID = "HomeAutomationClient-" + System.currentTimeMillis();
-    private static final String TEMPERATURE_TOPIC = "environment/temperature";
-    private static final String WEATHER_TOPIC = "environment/weather";
+    private static final class ConnectionLost implements MqttCommand {
+        final String reason;
+        final long lostAtNanos;
+
+        private ConnectionLost(String reason, long lostAtNanos) {
+            this.reason = reason;
+            this.lostAtNanos = lostAtNanos;
+        }
+    }
+
+    private static final class Reconnected implements MqttCommand {
+        final long reconnectedAtNanos;
+
+        private Reconnected(long reconnectedAtNanos) {
+            this.reconnectedAtNanos = reconnectedAtNanos;
+        }
+    }
+
+    private static final class DrainSpool implements MqttCommand {}
+
+    private final String brokerUrl;
+    private final String clientId;
+    private final String username;
+    private final String password;
+    private final List<String> temperatureTopics;
+    private final List<String> weatherTopics;
+    private final int qos;
+    private final int connectionTimeoutSeconds;
+    private final boolean persistentSession;
+    private final String persistenceDirectory;
+    private final Duration drainInterval;
+    private final int drainBatchSize;
 
     private MqttClient mqttClient;
+    private EnvironmentTelemetryStream telemetryStream;
+    private final TelemetrySpool spool;
+    private final TimerScheduler<MqttCommand> timers;
+    private long connectionLostAtNanos = -1;
+    private long backlogStartNanos = -1;
+    private long backlogDrained;
     private final ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener;
     private final ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener;
+    private final EnvironmentStreamMetrics streamMetrics;
+    private final DeviceRegistry devices;
+    private final Materializer materializer;
 
     private MqttEnvironmentSource(ActorContext<MqttCommand> context,
+                                  TimerScheduler<MqttCommand> timers,
                                   ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener,
-                                  ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener) {
+                                  ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener,
+                                  EnvironmentStreamMetrics streamMetrics,
+                                  DeviceRegistry devices) {
         super(context);
+        this.timers = timers;
         this.temperatureListener = temperatureListener;
         this.weatherListener = weatherListener;
+        this.streamMetrics = streamMetrics;
+        this.devices = devices;
+
+        Config config = context.getSystem().settings().config().getConfig("home-automation.environment.mqtt");
+        this.brokerUrl = EmbeddedMqttBroker.isEnabled(config)
+                ? EmbeddedMqttBroker.url(config)
+                : config.getString("broker-url");
+        String configuredClientId = config.getString("client-id");
+        this.clientId = configuredClientId.isEmpty()
+                ? "HomeAutomationClient-" + System.currentTimeMillis()
+                : configuredClientId;
+        this.username = config.getString("username");
+        this.password = config.getString("password");
+        this.temperatureTopics = config.getStringList("temperature-topics");
+        this.weatherTopics = config.getStringList("weather-topics");
+        this.qos = config.getInt("qos");
+        this.connectionTimeoutSeconds = (int) config.getDuration("connection-timeout").toSeconds();
+        this.persistentSession = config.getBoolean("session.persistent");
+        this.persistenceDirectory = config.getString("session.persistence-directory");
+        this.drainInterval = config.getDuration("spool.drain-interval");
+        this.drainBatchSize = (int) Math.max(1, config.getInt("spool.drain-rate") * drainInterval.toMillis() / 1000);
+        this.spool = new TelemetrySpool(config.getInt("spool.capacity"), streamMetrics);
+        streamMetrics.setSpoolSize(spool::size);
+        // Streams materialized here are stopped together with this actor
+        this.materializer = Materializer.createMaterializer(context);
     }
 
     public static Behavior<MqttCommand> create(
             ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener,
-            ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener) {
-        return Behaviors.setup(context ->
-                new MqttEnvironmentSource(context, temperatureListener, weatherListener)
-        );
+            ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener,
+            EnvironmentStreamMetrics streamMetrics,
+            DeviceRegistry devices) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new MqttEnvironmentSource(context, timers, temperatureListener, weatherListener, streamMetrics, devices)
+        ));
     }
 
     @Override
@@ -50,96 +123,205 @@ public class MqttEnvironmentSource extends AbstractBehavior<MqttEnvironmentSourc
         return newReceiveBuilder()
                 .onMessage(Connect.class, this::onConnect)
                 .onMessage(Disconnect.class, this::onDisconnect)
+                .onMessage(ConnectionLost.class, this::onConnectionLost)
+                .onMessage(Reconnected.class, this::onReconnected)
+                .onMessage(DrainSpool.class, this::onDrainSpool)
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     private Behavior<MqttCommand> onConnect(Connect msg) {
+        if (mqttClient != null) {
+            getContext().getLog().info("Already connected to MQTT broker {}", brokerUrl);
+            return this;
+        }
         try {
-            getContext().getLog().info("Connecting to MQTT broker: {}", BROKER_URL);
-            mqttClient = new MqttClient(BROKER_URL, CLIENT_ID, new MemoryPersistence());
+            getContext().getLog().info("Connecting to MQTT broker {} as {}", brokerUrl, clientId);
+            // Keeps in-flight QoS 1 messages across restarts of the client
+            mqttClient = new MqttClient(brokerUrl, clientId, new MqttDefaultFilePersistence(persistenceDirectory));
+            // Messages are acknowledged once streamed, so the broker keeps what the spool has not passed on yet
+            mqttClient.setManualAcks(true);
 
             MqttConnectOptions connectOptions = new MqttConnectOptions();
-            connectOptions.setCleanSession(true);
+            connectOptions.setCleanSession(!persistentSession);
             connectOptions.setAutomaticReconnect(true);
-            connectOptions.setConnectionTimeout(10);
+            connectOptions.setConnectionTimeout(connectionTimeoutSeconds);
+            if (!username.isEmpty()) {
+                connectOptions.setUserName(username);
+                connectOptions.setPassword(password.toCharArray());
+            }
 
-            mqttClient.setCallback(new MqttCallback() {
+            if (telemetryStream == null) {
+                telemetryStream = EnvironmentTelemetryStream.start(
+                        getContext().getSystem().settings().config().getConfig("home-automation.environment.stream"),
+                        materializer, getContext().getSystem().executionContext(), streamMetrics,
+                        getContext().getSystem().log(), temperatureTopics, weatherTopics, devices,
+                        temperatureListener, weatherListener);
+                timers.startTimerAtFixedRate(DrainSpool.class, new DrainSpool(), drainInterval);
+            }
+
+            ActorRef<MqttCommand> self = getContext().getSelf();
+            TelemetrySpool spool = this.spool;
+            mqttClient.setCallback(new MqttCallbackExtended() {
                 @Override
                 public void connectionLost(Throwable cause) {
-                    getContext().getLog().warn("Connection to MQTT broker lost: {}", cause.getMessage());
+                    spool.connectionLost();
+                    self.tell(new ConnectionLost(cause.getMessage(), System.nanoTime()));
                 }
 
                 @Override
-                public void messageArrived(String topic, MqttMessage message) {
-                    try {
-                        String payload = new String(message.getPayload(), StandardCharsets.UTF_8);
-                        getContext().getLog().debug("Message received on topic {}: {}", topic, payload);
-
-                        if (topic.equals(TEMPERATURE_TOPIC)) {
-                            JSONObject json = new JSONObject(payload);
-                            double temperature = json.getDouble("value");
-                            if (temperatureListener != null) {
-                                temperatureListener.tell(new EnvironmentSimulator.TemperatureUpdate(temperature));
-                            }
-                        } else if (topic.equals(WEATHER_TOPIC)) {
-                            JSONObject json = new JSONObject(payload);
-                            String weatherStr = json.getString("condition");
-                            try {
-                                EnvironmentSimulator.WeatherCondition condition =
-                                        EnvironmentSimulator.WeatherCondition.valueOf(weatherStr.toUpperCase());
-                                if (weatherListener != null) {
-                                    weatherListener.tell(new EnvironmentSimulator.WeatherUpdate(condition));
-                                }
-                            } catch (IllegalArgumentException e) {
-                                getContext().getLog().warn("Unknown weather condition: {}", weatherStr);
-                            }
-                        }
-                    } catch (Exception e) {
-                        getContext().getLog().error("Error processing MQTT message: {}", e.getMessage());
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    if (reconnect) {
+                        self.tell(new Reconnected(System.nanoTime()));
                     }
                 }
 
+                // Runs on Paho's thread, the spool never blocks it
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    spool.add(topic, message.getPayload(), message.getId(), message.getQos());
+                }
+
                 @Override
                 public void deliveryComplete(IMqttDeliveryToken token) {
                 }
             });
 
-            mqttClient.connect(connectOptions);
-            getContext().getLog().info("Connected to MQTT broker");
+            IMqttToken connectToken = mqttClient.connectWithResult(connectOptions);
+            getContext().getLog().info("Connected to MQTT broker, session present: {}",
+                    connectToken.getSessionPresent());
+            if (connectToken.getSessionPresent()) {
+                startBacklog(System.nanoTime());
+            }
 
-            mqttClient.subscribe(TEMPERATURE_TOPIC, 0);
-            mqttClient.subscribe(WEATHER_TOPIC, 0);
-            getContext().getLog().info("Subscribed to topics: {} and {}", TEMPERATURE_TOPIC, WEATHER_TOPIC);
+            subscribe();
 
         } catch (MqttException e) {
             getContext().getLog().error("Failed to connect to MQTT broker: {}", e.getMessage());
+            closeClient();
         }
 
         return this;
     }
 
-    private Behavior<MqttCommand> onDisconnect(Disconnect msg) {
-        try {
-            if (mqttClient != null && mqttClient.isConnected()) {
-                mqttClient.disconnect();
-                getContext().getLog().info("Disconnected from MQTT broker");
+    // A persistent session keeps the subscriptions on the broker, subscribing again is harmless
+    private void subscribe() throws MqttException {
+        List<String> filters = new ArrayList<>(temperatureTopics);
+        filters.addAll(weatherTopics);
+        int[] qosLevels = new int[filters.size()];
+        Arrays.fill(qosLevels, qos);
+        mqttClient.subscribe(filters.toArray(new String[0]), qosLevels);
+        getContext().getLog().info("Subscribed to topics {} with QoS {}", filters, qos);
+    }
+
+    private Behavior<MqttCommand> onConnectionLost(ConnectionLost msg) {
+        getContext().getLog().warn("Connection to MQTT broker lost: {}", msg.reason);
+        connectionLostAtNanos = msg.lostAtNanos;
+        return this;
+    }
+
+    private Behavior<MqttCommand> onReconnected(Reconnected msg) {
+        if (connectionLostAtNanos >= 0) {
+            long millis = (msg.reconnectedAtNanos - connectionLostAtNanos) / 1_000_000;
+            streamMetrics.recordReconnect(millis);
+            getContext().getLog().info("Reconnected to MQTT broker after {} ms", millis);
+            connectionLostAtNanos = -1;
+        }
+        startBacklog(msg.reconnectedAtNanos);
+        if (!persistentSession && mqttClient != null) {
+            try {
+                subscribe();
+            } catch (MqttException e) {
+                getContext().getLog().error("Failed to subscribe after reconnect: {}", e.getMessage());
             }
+        }
+        return this;
+    }
+
+    // The broker replays what it queued for the session right after connecting, that backlog is paced
+    private void startBacklog(long nanos) {
+        backlogStartNanos = nanos;
+        backlogDrained = 0;
+    }
+
+    private Behavior<MqttCommand> onDrainSpool(DrainSpool msg) {
+        if (telemetryStream == null) {
+            return this;
+        }
+        // Live traffic only waits for the stream, the replayed backlog is moved at most at the drain rate
+        int max = backlogStartNanos >= 0 ? drainBatchSize : Integer.MAX_VALUE;
+        int drained = spool.drainTo(telemetryStream, max, this::acknowledge);
+
+        if (backlogStartNanos >= 0) {
+            backlogDrained += drained;
+            if (spool.size() == 0) {
+                if (backlogDrained > 0) {
+                    long nanos = Math.max(1, System.nanoTime() - backlogStartNanos);
+                    double rate = backlogDrained * 1e9 / nanos;
+                    streamMetrics.recordBacklogDrain(rate);
+                    getContext().getLog().info("Drained backlog of {} messages in {} ms ({} messages/s)",
+                            backlogDrained, nanos / 1_000_000, Math.round(rate));
+                }
+                backlogStartNanos = -1;
+            }
+        }
+        return this;
+    }
+
+    private void acknowledge(int messageId, int qos) {
+        if (mqttClient == null) {
+            return;
+        }
+        try {
+            mqttClient.messageArrivedComplete(messageId, qos);
         } catch (MqttException e) {
-            getContext().getLog().error("Error disconnecting from MQTT broker: {}", e.getMessage());
+            getContext().getLog().warn("Could not acknowledge MQTT message {}: {}", messageId, e.getMessage());
         }
+    }
+
+    private Behavior<MqttCommand> onDisconnect(Disconnect msg) {
+        stopTelemetryStream();
+        disconnect();
         return this;
     }
 
-    private MqttEnvironmentSource onPostStop() {
+    private void stopTelemetryStream() {
+        if (telemetryStream != null) {
+            timers.cancel(DrainSpool.class);
+            telemetryStream.stop();
+            telemetryStream = null;
+            backlogStartNanos = -1;
+        }
+    }
+
+    private void disconnect() {
         try {
             if (mqttClient != null && mqttClient.isConnected()) {
                 mqttClient.disconnect();
-                getContext().getLog().info("Disconnected from MQTT broker on actor stop");
+                getContext().getLog().info("Disconnected from MQTT broker");
             }
         } catch (MqttException e) {
             getContext().getLog().error("Error disconnecting from MQTT broker: {}", e.getMessage());
         }
+        closeClient();
+    }
+
+    // Releases the lock on the persistence directory so the next connect can open it again
+    private void closeClient() {
+        spool.connectionLost();
+        if (mqttClient != null) {
+            try {
+                mqttClient.close();
+            } catch (MqttException e) {
+                getContext().getLog().error("Error closing MQTT client: {}", e.getMessage());
+            }
+            mqttClient = null;
+        }
+    }
+
+    private MqttEnvironmentSource onPostStop() {
+        stopTelemetryStream();
+        disconnect();
         return this;
     }
 }
\ No newline at end of file
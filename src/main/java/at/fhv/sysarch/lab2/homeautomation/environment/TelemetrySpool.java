@@ -0,0 +1,116 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+/**
+ * Ring buffer between the MQTT callback and the telemetry stream. QoS 1 and 2 messages are acknowledged to the
+ * broker only once the stream accepted them and are never dropped, a full spool only drops QoS 0 messages.
+ */
+final class TelemetrySpool {
+
+    /** Acknowledges a message to the broker, see {@code MqttClient.messageArrivedComplete}. */
+    interface Acknowledger {
+        void acknowledge(int messageId, int qos);
+    }
+
+    private final int capacity;
+    private String[] topics;
+    private byte[][] payloads;
+    private int[] messageIds;
+    private int[] qosLevels;
+    private int[] connections;
+    private final EnvironmentStreamMetrics metrics;
+    private int head;
+    private int size;
+    // Message ids are only valid on the connection they arrived on
+    private int connection;
+
+    TelemetrySpool(int capacity, EnvironmentStreamMetrics metrics) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Spool capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.topics = new String[capacity];
+        this.payloads = new byte[capacity][];
+        this.messageIds = new int[capacity];
+        this.qosLevels = new int[capacity];
+        this.connections = new int[capacity];
+        this.metrics = metrics;
+    }
+
+    synchronized void add(String topic, byte[] payload, int messageId, int qos) {
+        metrics.received.increment();
+        if (size >= capacity) {
+            if (qos == 0) {
+                metrics.dropped.increment();
+                return;
+            }
+            // Unacknowledged messages are bounded by the broker's in-flight window, so this stays small
+            if (size == topics.length) {
+                grow();
+            }
+        }
+        int tail = (head + size) % topics.length;
+        topics[tail] = topic;
+        payloads[tail] = payload;
+        messageIds[tail] = messageId;
+        qosLevels[tail] = qos;
+        connections[tail] = connection;
+        size++;
+    }
+
+    /**
+     * Called when the connection is lost. Spooled messages are still streamed, but their ids are not
+     * acknowledged on the next connection; a persistent session redelivers them instead.
+     */
+    synchronized void connectionLost() {
+        connection++;
+    }
+
+    /**
+     * Moves up to {@code max} of the oldest messages into the stream, acknowledges them and returns their number.
+     * Stops early, leaving the rest spooled and unacknowledged, as soon as the stream does not accept a message.
+     */
+    synchronized int drainTo(EnvironmentTelemetryStream stream, int max, Acknowledger acknowledger) {
+        int drained = 0;
+        while (drained < max && size > 0) {
+            if (!stream.offer(topics[head], payloads[head])) {
+                break;
+            }
+            if (qosLevels[head] > 0 && connections[head] == connection) {
+                acknowledger.acknowledge(messageIds[head], qosLevels[head]);
+            }
+            topics[head] = null;
+            payloads[head] = null;
+            head = (head + 1) % topics.length;
+            size--;
+            drained++;
+        }
+        return drained;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void grow() {
+        int length = topics.length * 2;
+        String[] newTopics = new String[length];
+        byte[][] newPayloads = new byte[length][];
+        int[] newMessageIds = new int[length];
+        int[] newQosLevels = new int[length];
+        int[] newConnections = new int[length];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % topics.length;
+            newTopics[i] = topics[index];
+            newPayloads[i] = payloads[index];
+            newMessageIds[i] = messageIds[index];
+            newQosLevels[i] = qosLevels[index];
+            newConnections[i] = connections[index];
+        }
+        topics = newTopics;
+        payloads = newPayloads;
+        messageIds = newMessageIds;
+        qosLevels = newQosLevels;
+        connections = newConnections;
+        head = 0;
+    }
+}
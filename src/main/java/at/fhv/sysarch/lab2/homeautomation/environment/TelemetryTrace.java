@@ -0,0 +1,210 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeries;
+import at.fhv.sysarch.lab2.homeautomation.timeseries.TimeSeriesStore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Recorded sensor readings, memory-mapped so a whole day is replayed without loading it onto the heap.
+ * A header with the device ids is followed by 16-byte records in timestamp order. Not thread-safe.
+ */
+public final class TelemetryTrace {
+
+    private static final int MAGIC = 0x48415452;
+    private static final short VERSION = 1;
+    // long timestamp | short device index | byte kind | byte 0 | float value (condition ordinal for weather)
+    private static final int RECORD_SIZE = 16;
+    private static final byte TEMPERATURE = 0;
+    private static final byte WEATHER = 1;
+    // Keeps every mapping below the 2 GB a ByteBuffer can address
+    private static final int RECORDS_PER_BUFFER = Integer.MAX_VALUE / RECORD_SIZE;
+
+    private final String[] devices;
+    private final MappedByteBuffer[] buffers;
+    private final long size;
+
+    private TelemetryTrace(String[] devices, MappedByteBuffer[] buffers, long size) {
+        this.devices = devices;
+        this.buffers = buffers;
+        this.size = size;
+    }
+
+    public static TelemetryTrace open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(fileSize, Integer.MAX_VALUE));
+            if (header.remaining() < 8 || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a telemetry trace");
+            }
+            short version = header.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version + " in " + file);
+            }
+            String[] devices = new String[header.getShort() & 0xFFFF];
+            for (int i = 0; i < devices.length; i++) {
+                byte[] id = new byte[header.getShort() & 0xFFFF];
+                header.get(id);
+                devices[i] = new String(id, StandardCharsets.UTF_8);
+            }
+
+            long recordBytes = fileSize - header.position();
+            if (recordBytes % RECORD_SIZE != 0) {
+                throw new IOException("Truncated telemetry trace " + file);
+            }
+            long size = recordBytes / RECORD_SIZE;
+            MappedByteBuffer[] buffers = new MappedByteBuffer[(int) ((size + RECORDS_PER_BUFFER - 1) / RECORDS_PER_BUFFER)];
+            for (int i = 0; i < buffers.length; i++) {
+                long first = (long) i * RECORDS_PER_BUFFER;
+                long records = Math.min(RECORDS_PER_BUFFER, size - first);
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        header.position() + first * RECORD_SIZE, records * RECORD_SIZE);
+            }
+            // The mappings stay valid after the channel is closed
+            return new TelemetryTrace(devices, buffers, size);
+        }
+    }
+
+    /**
+     * Writes the samples of the {@code temperature/<device>} and {@code weather/<device>} series of the store
+     * with {@code from <= timestamp <= to} as a trace. Returns the number of records written.
+     */
+    public static long export(TimeSeriesStore store, long fromMillis, long toMillis, Path file) throws IOException {
+        List<String> devices = new ArrayList<>();
+        Map<String, Integer> deviceIndexes = new HashMap<>();
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        for (String name : store.getNames()) {
+            int separator = name.indexOf('/');
+            String type = name.substring(0, Math.max(separator, 0));
+            byte kind;
+            if (type.equals("temperature")) {
+                kind = TEMPERATURE;
+            } else if (type.equals("weather")) {
+                kind = WEATHER;
+            } else {
+                continue;
+            }
+            List<TimeSeries.Sample> samples = store.find(name)
+                    .map(series -> series.range(fromMillis, toMillis))
+                    .orElse(List.of());
+            if (samples.isEmpty()) {
+                continue;
+            }
+            int device = deviceIndexes.computeIfAbsent(name.substring(separator + 1), id -> {
+                devices.add(id);
+                return devices.size() - 1;
+            });
+            if (devices.size() > 0xFFFF) {
+                throw new IOException("A trace holds at most " + 0xFFFF + " devices");
+            }
+            cursors.add(new Cursor(samples, device, kind, cursors.size()));
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        long written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(devices.size());
+            for (String device : devices) {
+                byte[] id = device.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(id.length);
+                out.write(id);
+            }
+
+            // Merges the series, each already in timestamp order
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                TimeSeries.Sample sample = cursor.samples.get(cursor.position);
+                out.writeLong(sample.timestampMillis);
+                out.writeShort(cursor.device);
+                out.writeByte(cursor.kind);
+                out.writeByte(0);
+                out.writeFloat((float) sample.value);
+                written++;
+                if (++cursor.position < cursor.samples.size()) {
+                    cursors.add(cursor);
+                }
+            }
+        }
+        return written;
+    }
+
+    /** Resolves a trace name inside the directory, rejecting names that point outside of it. */
+    public static Path resolve(Path directory, String name) {
+        Path base = directory.toAbsolutePath().normalize();
+        Path file = base.resolve(name).normalize();
+        if (!file.startsWith(base) || file.equals(base)) {
+            throw new IllegalArgumentException("Trace " + name + " is outside of " + directory);
+        }
+        return file;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long timestampMillis(long record) {
+        return buffer(record).getLong(offset(record));
+    }
+
+    public String deviceId(long record) {
+        return devices[buffer(record).getShort(offset(record) + 8) & 0xFFFF];
+    }
+
+    public boolean isWeather(long record) {
+        return buffer(record).get(offset(record) + 10) == WEATHER;
+    }
+
+    public float value(long record) {
+        return buffer(record).getFloat(offset(record) + 12);
+    }
+
+    private MappedByteBuffer buffer(long record) {
+        return buffers[(int) (record / RECORDS_PER_BUFFER)];
+    }
+
+    private static int offset(long record) {
+        return (int) (record % RECORDS_PER_BUFFER) * RECORD_SIZE;
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        final List<TimeSeries.Sample> samples;
+        final int device;
+        final byte kind;
+        // Keeps readings with equal timestamps in series order
+        final int order;
+        int position;
+
+        Cursor(List<TimeSeries.Sample> samples, int device, byte kind, int order) {
+            this.samples = samples;
+            this.device = device;
+            this.kind = kind;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int byTime = Long.compare(samples.get(position).timestampMillis,
+                    other.samples.get(other.position).timestampMillis);
+            return byTime != 0 ? byTime : Integer.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** MQTT topic filters compiled into a trie, the most specific filter wins. Build it before sharing it. */
+final class TopicTrie<V> {
+
+    static final class Match<V> {
+        final V value;
+        /** The level matched by the last {@code +} of the filter, the whole topic if the filter has none. */
+        final String deviceId;
+
+        private Match(V value, String deviceId) {
+            this.value = value;
+            this.deviceId = deviceId;
+        }
+    }
+
+    private static final class Node<V> {
+        final Map<String, Node<V>> children = new HashMap<>();
+        Node<V> singleLevel;
+        V value;
+        V multiLevel;
+    }
+
+    private final Node<V> root = new Node<>();
+    private int size;
+
+    void add(String filter, V value) {
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic filter");
+        }
+        Node<V> node = root;
+        int start = 0;
+        while (true) {
+            int end = levelEnd(filter, start);
+            String level = filter.substring(start, end);
+            boolean last = end == filter.length();
+
+            if (level.equals("#")) {
+                if (!last) {
+                    throw new IllegalArgumentException("# must be the last level of topic filter " + filter);
+                }
+                node.multiLevel = value;
+                break;
+            }
+            if (level.equals("+")) {
+                if (node.singleLevel == null) {
+                    node.singleLevel = new Node<>();
+                }
+                node = node.singleLevel;
+            } else if (level.contains("+") || level.contains("#")) {
+                throw new IllegalArgumentException("Wildcards must occupy a whole level of topic filter " + filter);
+            } else {
+                node = node.children.computeIfAbsent(level, l -> new Node<>());
+            }
+
+            if (last) {
+                node.value = value;
+                break;
+            }
+            start = end + 1;
+        }
+        size++;
+    }
+
+    /** The most specific filter matching the topic, or {@code null} if none does. */
+    Match<V> match(String topic) {
+        if (topic.isEmpty()) {
+            return null;
+        }
+        return match(root, topic, 0, -1, -1, !topic.startsWith("$"));
+    }
+
+    int size() {
+        return size;
+    }
+
+    private Match<V> match(Node<V> node, String topic, int start, int captureStart, int captureEnd,
+                           boolean wildcards) {
+        if (start > topic.length()) {
+            if (node.value != null) {
+                return new Match<>(node.value, deviceId(topic, captureStart, captureEnd));
+            }
+            // "a/#" also matches the parent level "a"
+            return node.multiLevel != null
+                    ? new Match<>(node.multiLevel, deviceId(topic, captureStart, captureEnd))
+                    : null;
+        }
+
+        int end = levelEnd(topic, start);
+        Node<V> exact = node.children.get(topic.substring(start, end));
+        if (exact != null) {
+            Match<V> match = match(exact, topic, end + 1, captureStart, captureEnd, true);
+            if (match != null) {
+                return match;
+            }
+        }
+        if (!wildcards) {
+            return null;
+        }
+        if (node.singleLevel != null) {
+            Match<V> match = match(node.singleLevel, topic, end + 1, start, end, true);
+            if (match != null) {
+                return match;
+            }
+        }
+        return node.multiLevel != null
+                ? new Match<>(node.multiLevel, deviceId(topic, captureStart, captureEnd))
+                : null;
+    }
+
+    private static int levelEnd(String topic, int start) {
+        int end = topic.indexOf('/', start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    private static String deviceId(String topic, int captureStart, int captureEnd) {
+        return captureStart < 0 ? topic : topic.substring(captureStart, captureEnd);
+    }
+}
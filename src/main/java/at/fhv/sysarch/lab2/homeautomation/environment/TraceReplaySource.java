@@ -0,0 +1,205 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Optional;
+
+/** Replays a recorded {@link TelemetryTrace} to the devices, {@code speed} times faster than recorded. */
+public class TraceReplaySource extends AbstractBehavior<TraceReplaySource.ReplayCommand> {
+
+    public static final double MIN_SPEED = 1;
+    public static final double MAX_SPEED = 1000;
+
+    public interface ReplayCommand {}
+
+    public static final class Start implements ReplayCommand {
+        final Optional<String> file;
+        final Optional<Double> speed;
+
+        public Start(Optional<String> file, Optional<Double> speed) {
+            this.file = file;
+            this.speed = speed;
+        }
+    }
+
+    public static final class Stop implements ReplayCommand {}
+
+    private static final class ReplayTick implements ReplayCommand {}
+
+    private static final EnvironmentSimulator.WeatherCondition[] CONDITIONS =
+            EnvironmentSimulator.WeatherCondition.values();
+
+    private final Path directory;
+    private final String defaultFile;
+    private final double defaultSpeed;
+    private final boolean loop;
+    private final int maxBatch;
+
+    private final TimerScheduler<ReplayCommand> timers;
+    private final ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener;
+    private final ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener;
+    private final DeviceRegistry devices;
+
+    private TelemetryTrace trace;
+    private double speed;
+    private long position;
+    private long traceStartMillis;
+    private long replayStartMillis;
+    private long replayStartNanos;
+    private long maxLagNanos;
+
+    private TraceReplaySource(ActorContext<ReplayCommand> context,
+                              TimerScheduler<ReplayCommand> timers,
+                              ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener,
+                              ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener,
+                              DeviceRegistry devices) {
+        super(context);
+        this.timers = timers;
+        this.temperatureListener = temperatureListener;
+        this.weatherListener = weatherListener;
+        this.devices = devices;
+
+        Config config = context.getSystem().settings().config().getConfig("home-automation.environment.replay");
+        this.directory = Paths.get(config.getString("directory"));
+        this.defaultFile = config.getString("file");
+        this.defaultSpeed = config.getDouble("speed");
+        this.loop = config.getBoolean("loop");
+        this.maxBatch = config.getInt("max-batch");
+    }
+
+    public static Behavior<ReplayCommand> create(
+            ActorRef<EnvironmentSimulator.TemperatureCommand> temperatureListener,
+            ActorRef<EnvironmentSimulator.WeatherCommand> weatherListener,
+            DeviceRegistry devices) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new TraceReplaySource(context, timers, temperatureListener, weatherListener, devices)
+        ));
+    }
+
+    @Override
+    public Receive<ReplayCommand> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Start.class, this::onStart)
+                .onMessage(Stop.class, this::onStop)
+                .onMessage(ReplayTick.class, this::onReplayTick)
+                .build();
+    }
+
+    private Behavior<ReplayCommand> onStart(Start msg) {
+        stopReplay();
+
+        String file = msg.file.orElse(defaultFile);
+        double requestedSpeed = msg.speed.orElse(defaultSpeed);
+        speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, requestedSpeed));
+        if (speed != requestedSpeed) {
+            getContext().getLog().warn("Replay speed {} is out of range, using {}", requestedSpeed, speed);
+        }
+
+        try {
+            trace = TelemetryTrace.open(TelemetryTrace.resolve(directory, file));
+        } catch (IOException | IllegalArgumentException e) {
+            getContext().getLog().error("Failed to open trace {}: {}", file, e.getMessage());
+            return this;
+        }
+        if (trace.size() == 0) {
+            getContext().getLog().warn("Trace {} holds no readings", file);
+            trace = null;
+            return this;
+        }
+
+        getContext().getLog().info("Replaying {} readings of trace {} at {}x speed", trace.size(), file, speed);
+        restart();
+        return this;
+    }
+
+    private Behavior<ReplayCommand> onStop(Stop msg) {
+        if (trace != null) {
+            getContext().getLog().info("Stopped replay after {} of {} readings", position, trace.size());
+        }
+        stopReplay();
+        return this;
+    }
+
+    private Behavior<ReplayCommand> onReplayTick(ReplayTick msg) {
+        if (trace == null) {
+            return this;
+        }
+
+        long elapsedNanos = System.nanoTime() - replayStartNanos;
+        int sent = 0;
+        while (position < trace.size() && sent < maxBatch) {
+            long dueNanos = dueNanos(position);
+            if (dueNanos > elapsedNanos) {
+                break;
+            }
+            maxLagNanos = Math.max(maxLagNanos, elapsedNanos - dueNanos);
+            send(position++);
+            sent++;
+        }
+
+        if (position == trace.size()) {
+            double seconds = (System.nanoTime() - replayStartNanos) / 1e9;
+            getContext().getLog().info("Replayed {} readings in {} s ({} readings/s), lagging at most {} ms",
+                    trace.size(), String.format("%.1f", seconds), Math.round(trace.size() / seconds),
+                    maxLagNanos / 1_000_000);
+            if (loop) {
+                restart();
+            } else {
+                trace = null;
+            }
+        } else if (sent == maxBatch) {
+            timers.startSingleTimer(ReplayTick.class, new ReplayTick(), Duration.ZERO);
+        } else {
+            long delayNanos = dueNanos(position) - (System.nanoTime() - replayStartNanos);
+            timers.startSingleTimer(ReplayTick.class, new ReplayTick(), Duration.ofNanos(Math.max(0, delayNanos)));
+        }
+        return this;
+    }
+
+    private void restart() {
+        position = 0;
+        maxLagNanos = 0;
+        traceStartMillis = trace.timestampMillis(0);
+        replayStartMillis = System.currentTimeMillis();
+        replayStartNanos = System.nanoTime();
+        timers.startSingleTimer(ReplayTick.class, new ReplayTick(), Duration.ZERO);
+    }
+
+    private void stopReplay() {
+        timers.cancel(ReplayTick.class);
+        trace = null;
+    }
+
+    // Offset of the reading from the start of the replay, in wall-clock time
+    private long dueNanos(long record) {
+        return (long) ((trace.timestampMillis(record) - traceStartMillis) * 1_000_000 / speed);
+    }
+
+    // Readings are stamped with their trace time scaled by the speed from the start of the replay, so history
+    // and filters see them spaced as in the trace even while a lagging replay sends them in batches
+    private void send(long record) {
+        String deviceId = trace.deviceId(record);
+        long timestampMillis = replayStartMillis + dueNanos(record) / 1_000_000;
+        if (trace.isWeather(record)) {
+            int ordinal = (int) trace.value(record);
+            if (ordinal >= 0 && ordinal < CONDITIONS.length) {
+                devices.weatherDevice(deviceId, weatherListener)
+                        .tell(new EnvironmentSimulator.WeatherUpdate(CONDITIONS[ordinal], timestampMillis));
+            }
+        } else {
+            devices.temperatureDevice(deviceId, temperatureListener)
+                    .tell(new EnvironmentSimulator.TemperatureUpdate(trace.value(record), timestampMillis));
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package at.fhv.sysarch.lab2.homeautomation.grpc;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/** Per-method call statistics of a gRPC client or server, recorded by its interceptors. */
+public final class GrpcMetrics {
+
+    private final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<>();
+
+    public GrpcMetrics(ServiceDescriptor... services) {
+        for (ServiceDescriptor service : services) {
+            for (MethodDescriptor<?, ?> method : service.getMethods()) {
+                methods.put(method.getFullMethodName(), new MethodStats(method.getFullMethodName()));
+            }
+        }
+    }
+
+    public Collection<MethodStats> getMethods() {
+        return Collections.unmodifiableCollection(methods.values());
+    }
+
+    public ClientInterceptor clientInterceptor() {
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                       CallOptions callOptions, Channel next) {
+                MethodStats stats = statsOf(method);
+
+                return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        long startedAt = stats.started();
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                            @Override
+                            public void onMessage(RespT message) {
+                                stats.received(message);
+                                super.onMessage(message);
+                            }
+
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                stats.finished(status.getCode(), startedAt);
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    }
+
+                    @Override
+                    public void sendMessage(ReqT message) {
+                        stats.sent(message);
+                        super.sendMessage(message);
+                    }
+                };
+            }
+        };
+    }
+
+    public ServerInterceptor serverInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                MethodStats stats = statsOf(call.getMethodDescriptor());
+                RecordedServerCall<ReqT, RespT> recorded = new RecordedServerCall<>(call, stats);
+
+                return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(recorded, headers)) {
+                    @Override
+                    public void onMessage(ReqT message) {
+                        stats.received(message);
+                        super.onMessage(message);
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        // Handlers do not have to close a cancelled call
+                        recorded.finish(Status.Code.CANCELLED);
+                        super.onCancel();
+                    }
+                };
+            }
+        };
+    }
+
+    private static final class RecordedServerCall<ReqT, RespT>
+            extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+        private final MethodStats stats;
+        private final long startedAt;
+        private boolean finished;
+
+        RecordedServerCall(ServerCall<ReqT, RespT> call, MethodStats stats) {
+            super(call);
+            this.stats = stats;
+            this.startedAt = stats.started();
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            stats.sent(message);
+            super.sendMessage(message);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            finish(status.getCode());
+            super.close(status, trailers);
+        }
+
+        synchronized void finish(Status.Code code) {
+            if (!finished) {
+                finished = true;
+                stats.finished(code, startedAt);
+            }
+        }
+    }
+
+    /** Writes all statistics in the Prometheus text exposition format. */
+    public void writePrometheus(StringBuilder out, String prefix) {
+        out.append("# TYPE ").append(prefix).append("_latency_seconds histogram\n");
+        for (MethodStats stats : methods.values()) {
+            long cumulative = 0;
+            for (int i = 0; i < MethodStats.BUCKETS; i++) {
+                cumulative += stats.bucketCount(i);
+                out.append(prefix).append("_latency_seconds_bucket{method=\"").append(stats.method).append("\",le=\"");
+                if (i == MethodStats.BUCKETS - 1) {
+                    out.append("+Inf");
+                } else {
+                    out.append(stats.bucketUpperBoundNanos(i) / 1e9);
+                }
+                out.append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(prefix).append("_latency_seconds_sum{method=\"").append(stats.method).append("\"} ")
+                    .append(stats.getLatencySumNanos() / 1e9).append('\n');
+            out.append(prefix).append("_latency_seconds_count{method=\"").append(stats.method).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+
+        writeGauge(out, prefix + "_in_flight", "gauge", MethodStats::getInFlight);
+        writeGauge(out, prefix + "_messages_sent_total", "counter", MethodStats::getMessagesSent);
+        writeGauge(out, prefix + "_messages_received_total", "counter", MethodStats::getMessagesReceived);
+        writeGauge(out, prefix + "_bytes_sent_total", "counter", MethodStats::getBytesSent);
+        writeGauge(out, prefix + "_bytes_received_total", "counter", MethodStats::getBytesReceived);
+
+        out.append("# TYPE ").append(prefix).append("_calls_total counter\n");
+        for (MethodStats stats : methods.values()) {
+            for (Status.Code code : Status.Code.values()) {
+                long calls = stats.getCalls(code);
+                if (calls > 0) {
+                    out.append(prefix).append("_calls_total{method=\"").append(stats.method)
+                            .append("\",status=\"").append(code.name()).append("\"} ").append(calls).append('\n');
+                }
+            }
+        }
+    }
+
+    private void writeGauge(StringBuilder out, String name, String type, ToLongFunction<MethodStats> value) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (MethodStats stats : methods.values()) {
+            out.append(name).append("{method=\"").append(stats.method).append("\"} ")
+                    .append(value.applyAsLong(stats)).append('\n');
+        }
+    }
+
+    private MethodStats statsOf(MethodDescriptor<?, ?> method) {
+        MethodStats stats = methods.get(method.getFullMethodName());
+        if (stats == null) {
+            stats = methods.computeIfAbsent(method.getFullMethodName(), MethodStats::new);
+        }
+        return stats;
+    }
+
+    public static final class MethodStats {
+        // Bucket i holds latencies up to 2^i microseconds, the last bucket everything above
+        static final int BUCKETS = 26;
+
+        private final String method;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray calls = new AtomicLongArray(Status.Code.values().length);
+        private final LongAdder latencySumNanos = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder messagesSent = new LongAdder();
+        private final LongAdder messagesReceived = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+
+        MethodStats(String method) {
+            this.method = method;
+        }
+
+        long started() {
+            inFlight.increment();
+            return System.nanoTime();
+        }
+
+        void finished(Status.Code code, long startedAt) {
+            long nanos = System.nanoTime() - startedAt;
+            inFlight.decrement();
+            calls.incrementAndGet(code.ordinal());
+            latencySumNanos.add(nanos);
+            buckets.incrementAndGet(bucketOf(nanos));
+        }
+
+        void sent(Object message) {
+            messagesSent.increment();
+            bytesSent.add(sizeOf(message));
+        }
+
+        void received(Object message) {
+            messagesReceived.increment();
+            bytesReceived.add(sizeOf(message));
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        public long getCalls(Status.Code code) {
+            return calls.get(code.ordinal());
+        }
+
+        public long getTotalCalls() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            return total;
+        }
+
+        public long getLatencySumNanos() {
+            return latencySumNanos.sum();
+        }
+
+        /** Upper bound of the histogram bucket that contains the given quantile, 0 without calls. */
+        public long getLatencyPercentileNanos(double quantile) {
+            long total = getTotalCalls();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= rank) {
+                    return bucketUpperBoundNanos(i);
+                }
+            }
+            return bucketUpperBoundNanos(BUCKETS - 2);
+        }
+
+        public long getMessagesSent() {
+            return messagesSent.sum();
+        }
+
+        public long getMessagesReceived() {
+            return messagesReceived.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        long bucketCount(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        long bucketUpperBoundNanos(int bucket) {
+            return (1L << bucket) * 1_000;
+        }
+
+        private static int bucketOf(long nanos) {
+            long micros = (nanos + 999) / 1_000;
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        // Protobuf caches the serialized size, so this does not serialize the message again
+        private static int sizeOf(Object message) {
+            return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+        }
+    }
+}
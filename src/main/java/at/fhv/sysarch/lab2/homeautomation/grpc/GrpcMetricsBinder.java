@@ -0,0 +1,70 @@
+package at.fhv.sysarch.lab2.homeautomation.grpc;
+
+import io.grpc.Status;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+
+/** Publishes {@link GrpcMetrics} through Micrometer. */
+public class GrpcMetricsBinder implements MeterBinder {
+
+    private final GrpcMetrics metrics;
+    private final String prefix;
+
+    public GrpcMetricsBinder(GrpcMetrics metrics, String prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (GrpcMetrics.MethodStats stats : metrics.getMethods()) {
+            String method = stats.getMethod();
+
+            FunctionTimer.builder(prefix + ".latency", stats,
+                            GrpcMetrics.MethodStats::getTotalCalls,
+                            GrpcMetrics.MethodStats::getLatencySumNanos, TimeUnit.NANOSECONDS)
+                    .tag("method", method)
+                    .register(registry);
+
+            for (double quantile : new double[]{0.5, 0.95, 0.99}) {
+                TimeGauge.builder(prefix + ".latency.percentile", stats, TimeUnit.NANOSECONDS,
+                                s -> s.getLatencyPercentileNanos(quantile))
+                        .tag("method", method)
+                        .tag("quantile", Double.toString(quantile))
+                        .register(registry);
+            }
+
+            Gauge.builder(prefix + ".in.flight", stats, GrpcMetrics.MethodStats::getInFlight)
+                    .tag("method", method)
+                    .register(registry);
+
+            FunctionCounter.builder(prefix + ".messages.sent", stats, GrpcMetrics.MethodStats::getMessagesSent)
+                    .tag("method", method)
+                    .register(registry);
+            FunctionCounter.builder(prefix + ".messages.received", stats, GrpcMetrics.MethodStats::getMessagesReceived)
+                    .tag("method", method)
+                    .register(registry);
+            FunctionCounter.builder(prefix + ".bytes.sent", stats, GrpcMetrics.MethodStats::getBytesSent)
+                    .tag("method", method)
+                    .baseUnit("bytes")
+                    .register(registry);
+            FunctionCounter.builder(prefix + ".bytes.received", stats, GrpcMetrics.MethodStats::getBytesReceived)
+                    .tag("method", method)
+                    .baseUnit("bytes")
+                    .register(registry);
+
+            for (Status.Code code : Status.Code.values()) {
+                FunctionCounter.builder(prefix + ".calls", stats, s -> s.getCalls(code))
+                        .tag("method", method)
+                        .tag("status", code.name())
+                        .register(registry);
+            }
+        }
+    }
+}
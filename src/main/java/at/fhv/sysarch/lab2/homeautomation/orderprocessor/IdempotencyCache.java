@@ -0,0 +1,104 @@
+package at.fhv.sysarch.lab2.homeautomation.orderprocessor;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, time-expiring map from a request key to its (possibly still running) result.
+ * Concurrent duplicates share the future of the first request, failed results are not cached.
+ */
+final class IdempotencyCache<V> {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    // In insertion order, guarded by this
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>();
+
+    IdempotencyCache(int maxEntries, Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    CompletableFuture<V> getOrCompute(String key, Supplier<CompletableFuture<V>> compute) {
+        if (key.isEmpty()) {
+            return compute.get();
+        }
+
+        Entry<V> fresh;
+        synchronized (this) {
+            long now = System.nanoTime();
+            evict(now);
+
+            Entry<V> existing = entries.get(key);
+            // A request still being processed is joined even past the ttl, it is not charged twice
+            if (existing != null && (!existing.result.isDone() || !existing.isExpired(now, ttlNanos))) {
+                return existing.result;
+            }
+            fresh = new Entry<>(key, now);
+            entries.remove(key);
+            entries.put(key, fresh);
+        }
+
+        CompletableFuture<V> computed;
+        try {
+            computed = compute.get();
+        } catch (RuntimeException e) {
+            fail(fresh, e);
+            return fresh.result;
+        }
+        computed.whenComplete((value, ex) -> {
+            if (ex != null) {
+                fail(fresh, ex);
+            } else {
+                fresh.result.complete(value);
+            }
+        });
+
+        return fresh.result;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void fail(Entry<V> entry, Throwable ex) {
+        synchronized (this) {
+            entries.remove(entry.key, entry);
+        }
+        entry.result.completeExceptionally(ex);
+    }
+
+    // Pending entries are never evicted, so the map only exceeds maxEntries by requests in progress
+    private void evict(long now) {
+        Iterator<Entry<V>> oldestFirst = entries.values().iterator();
+        while (oldestFirst.hasNext()) {
+            Entry<V> entry = oldestFirst.next();
+            if (!entry.result.isDone()) {
+                continue;
+            }
+            if (entries.size() >= maxEntries || entry.isExpired(now, ttlNanos)) {
+                oldestFirst.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static final class Entry<V> {
+        final String key;
+        final long createdAt;
+        final CompletableFuture<V> result = new CompletableFuture<>();
+
+        Entry(String key, long createdAt) {
+            this.key = key;
+            this.createdAt = createdAt;
+        }
+
+        boolean isExpired(long now, long ttlNanos) {
+            return now - createdAt > ttlNanos;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package at.fhv.sysarch.lab2.homeautomation.orderprocessor;
+
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.ReceiptResponse;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of processed orders over memory-mapped segment files, indexed by order id in memory.
+ * A single writer thread forces the segment once per group of appends.
+ */
+final class OrderLedger implements AutoCloseable {
+
+    // A record is [int length][int crc][short idLength][order id][receipt], a zero length ends a segment's data
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int MAX_GROUP_SIZE = 256;
+    private static final int MAX_ID_LENGTH = 0xFFFF;
+    // Queued last by close, the writer stops once it reaches it
+    private static final Append CLOSE = new Append(null);
+
+    private final Path directory;
+    private final int segmentSize;
+
+    // Segments and index are written by the writer thread and read by lookups, guarded by this
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final PositionIndex index = new PositionIndex(1024);
+
+    private MappedByteBuffer current;
+    private int position;
+
+    private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // Guards closed and failure, so no append is queued behind CLOSE or a dead writer
+    private final Object lifecycle = new Object();
+    private boolean closed;
+    private Throwable failure;
+
+    private OrderLedger(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.writer = new Thread(this::writeLoop, "order-ledger-writer");
+        this.writer.setDaemon(true);
+    }
+
+    static OrderLedger open(Path directory, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        OrderLedger ledger = new OrderLedger(directory, segmentSize);
+        ledger.recover();
+        ledger.writer.start();
+        return ledger;
+    }
+
+    /** Completes once the receipt is durably written. */
+    CompletableFuture<Void> append(ReceiptResponse receipt) {
+        Append append = new Append(receipt);
+        if (receipt.getOrderId().getBytes(StandardCharsets.UTF_8).length > MAX_ID_LENGTH) {
+            append.done.completeExceptionally(new IllegalArgumentException(
+                    "Order id exceeds " + MAX_ID_LENGTH + " bytes"));
+            return append.done;
+        }
+        synchronized (lifecycle) {
+            if (failure != null) {
+                append.done.completeExceptionally(new IllegalStateException("Order ledger failed", failure));
+            } else if (closed) {
+                append.done.completeExceptionally(new IllegalStateException("Order ledger is closed"));
+            } else {
+                appends.add(append);
+            }
+        }
+        return append.done;
+    }
+
+    Optional<ReceiptResponse> find(String orderId) {
+        byte[] id = orderId.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(id);
+
+        synchronized (this) {
+            for (int slot = index.firstSlot(hash); index.isOccupied(slot); slot = index.nextSlot(slot)) {
+                if (index.hashAt(slot) != hash) {
+                    continue;
+                }
+                long location = index.locationAt(slot);
+                ByteBuffer segment = segments.get((int) (location >>> 32) - 1);
+                int recordStart = (int) location;
+                if (hasId(segment, recordStart, id)) {
+                    return Optional.of(readReceipt(segment, recordStart));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (lifecycle) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appends.add(CLOSE);
+        }
+        writer.join();
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(file -> file.getFileName().toString().endsWith(".segment"))
+                    .sorted()
+                    .toList();
+        }
+
+        for (Path file : files) {
+            MappedByteBuffer segment = map(file);
+            segments.add(segment);
+            current = segment;
+            position = scan(segment, segments.size());
+        }
+
+        if (current == null) {
+            rollSegment();
+        }
+    }
+
+    private int scan(MappedByteBuffer segment, int segmentNumber) {
+        CRC32C crc = new CRC32C();
+        int offset = 0;
+
+        while (offset <= segmentSize - HEADER_SIZE) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || length > segmentSize - HEADER_SIZE - offset
+                    || crcOf(crc, segment, offset + HEADER_SIZE, length) != segment.getInt(offset + Integer.BYTES)) {
+                break;
+            }
+
+            int idLength = Short.toUnsignedInt(segment.getShort(offset + HEADER_SIZE));
+            byte[] id = new byte[idLength];
+            segment.get(offset + HEADER_SIZE + Short.BYTES, id);
+            index.put(hash(id), (long) segmentNumber << 32 | offset);
+
+            offset += HEADER_SIZE + length;
+        }
+
+        // Anything after the last valid record is a torn write, clear it so a later scan stops here too
+        if (offset <= segmentSize - HEADER_SIZE && segment.getInt(offset) != 0) {
+            for (int i = offset; i < segmentSize; i++) {
+                segment.put(i, (byte) 0);
+            }
+            segment.force();
+        }
+        return offset;
+    }
+
+    private void writeLoop() {
+        List<Append> group = new ArrayList<>(MAX_GROUP_SIZE);
+        CRC32C crc = new CRC32C();
+
+        boolean closing = false;
+        while (!closing) {
+            try {
+                group.add(appends.take());
+            } catch (InterruptedException e) {
+                // Only CLOSE stops the writer, appends queued before it must still complete
+                continue;
+            }
+            appends.drainTo(group, MAX_GROUP_SIZE - 1);
+            closing = group.get(group.size() - 1) == CLOSE;
+            if (closing) {
+                group.remove(group.size() - 1);
+            }
+
+            try {
+                commit(group, crc);
+            } catch (RuntimeException | Error e) {
+                fail(group, e);
+                return;
+            }
+            group.clear();
+        }
+    }
+
+    private void commit(List<Append> group, CRC32C crc) {
+        long[] hashes = new long[group.size()];
+        long[] locations = new long[group.size()];
+
+        for (int i = 0; i < group.size(); i++) {
+            Append append = group.get(i);
+            try {
+                locations[i] = write(append.receipt, crc);
+                hashes[i] = hash(append.receipt.getOrderId().getBytes(StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                append.done.completeExceptionally(e);
+            }
+        }
+        current.force();
+
+        // Only durable records become visible to lookups
+        synchronized (this) {
+            for (int i = 0; i < group.size(); i++) {
+                if (locations[i] != 0) {
+                    index.put(hashes[i], locations[i]);
+                }
+            }
+        }
+        group.forEach(append -> append.done.complete(null));
+    }
+
+    // Whether anything of the group reached the disk is unknown, so the ledger takes no further appends
+    private void fail(List<Append> group, Throwable cause) {
+        synchronized (lifecycle) {
+            failure = cause;
+            closed = true;
+        }
+        List<Append> queued = new ArrayList<>(group);
+        appends.drainTo(queued);
+
+        IllegalStateException error = new IllegalStateException("Order ledger failed", cause);
+        for (Append append : queued) {
+            if (append != CLOSE) {
+                append.done.completeExceptionally(error);
+            }
+        }
+    }
+
+    private long write(ReceiptResponse receipt, CRC32C crc) {
+        byte[] id = receipt.getOrderId().getBytes(StandardCharsets.UTF_8);
+        byte[] body = receipt.toByteArray();
+        int length = Short.BYTES + id.length + body.length;
+
+        if (length > segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("Receipt of order " + receipt.getOrderId() + " exceeds the segment size");
+        }
+        if (length > segmentSize - HEADER_SIZE - position) {
+            current.force();
+            try {
+                rollSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int recordStart = position;
+        int payloadStart = recordStart + HEADER_SIZE;
+        current.putShort(payloadStart, (short) id.length);
+        current.put(payloadStart + Short.BYTES, id);
+        current.put(payloadStart + Short.BYTES + id.length, body);
+        current.putInt(recordStart + Integer.BYTES, crcOf(crc, current, payloadStart, length));
+        // The length goes last, so a record is only found by a scan once it is complete
+        current.putInt(recordStart, length);
+
+        position = payloadStart + length;
+        return (long) segments.size() << 32 | recordStart;
+    }
+
+    private void rollSegment() throws IOException {
+        Path file = directory.resolve(String.format("%010d.segment", segments.size() + 1));
+        MappedByteBuffer segment = map(file);
+        synchronized (this) {
+            segments.add(segment);
+        }
+        current = segment;
+        position = 0;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private static int crcOf(CRC32C crc, ByteBuffer segment, int offset, int length) {
+        crc.reset();
+        crc.update(segment.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private static boolean hasId(ByteBuffer segment, int recordStart, byte[] id) {
+        int payloadStart = recordStart + HEADER_SIZE;
+        if (Short.toUnsignedInt(segment.getShort(payloadStart)) != id.length) {
+            return false;
+        }
+        return segment.slice(payloadStart + Short.BYTES, id.length).equals(ByteBuffer.wrap(id));
+    }
+
+    private static ReceiptResponse readReceipt(ByteBuffer segment, int recordStart) {
+        int payloadStart = recordStart + HEADER_SIZE;
+        int length = segment.getInt(recordStart);
+        int idLength = Short.toUnsignedInt(segment.getShort(payloadStart));
+        int bodyStart = payloadStart + Short.BYTES + idLength;
+
+        try {
+            return ReceiptResponse.parseFrom(segment.slice(bodyStart, length - Short.BYTES - idLength));
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupt receipt in order ledger", e);
+        }
+    }
+
+    // FNV-1a, spread with a final mix so the low bits used for slots depend on all input bytes
+    private static long hash(byte[] id) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : id) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Append {
+        final ReceiptResponse receipt;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Append(ReceiptResponse receipt) {
+            this.receipt = receipt;
+        }
+    }
+
+    /**
+     * Open-addressing table from order id hash to packed {@code segment << 32 | offset}. Only the hashes
+     * are kept, a hit is confirmed against the id stored in the record. Segment numbers start at 1, so a
+     * location of 0 marks an empty slot.
+     */
+    private static final class PositionIndex {
+        private long[] hashes;
+        private long[] locations;
+        private int size;
+
+        PositionIndex(int capacity) {
+            this.hashes = new long[capacity];
+            this.locations = new long[capacity];
+        }
+
+        int firstSlot(long hash) {
+            return (int) hash & (hashes.length - 1);
+        }
+
+        int nextSlot(int slot) {
+            return (slot + 1) & (hashes.length - 1);
+        }
+
+        boolean isOccupied(int slot) {
+            return locations[slot] != 0;
+        }
+
+        long hashAt(int slot) {
+            return hashes[slot];
+        }
+
+        long locationAt(int slot) {
+            return locations[slot];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void put(long hash, long location) {
+            if ((size + 1) * 4 > hashes.length * 3) {
+                grow();
+            }
+            int slot = firstSlot(hash);
+            while (isOccupied(slot)) {
+                slot = nextSlot(slot);
+            }
+            hashes[slot] = hash;
+            locations[slot] = location;
+            size++;
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            long[] oldLocations = locations;
+            hashes = new long[oldHashes.length * 2];
+            locations = new long[oldLocations.length * 2];
+            size = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldLocations[i] != 0) {
+                    put(oldHashes[i], oldLocations[i]);
+                }
+            }
+        }
+    }
+}
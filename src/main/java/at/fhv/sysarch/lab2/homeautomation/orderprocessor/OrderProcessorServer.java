@@ -3,61 +3,194 @@ package at.fhv.sysarch.lab2.homeautomation.orderprocessor;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.SupervisorStrategy;
 import akka.actor.typed.javadsl.*;
 
 import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.*;
-
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.Context;
+import io.grpc.Contexts;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.protobuf.services.HealthStatusManager;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class OrderProcessorServer {
 
-    private Server server;
-    private final int port = 8101;
+    private final Server server;
+    private final ActorSystem<OrderProcessorActor.Command> system;
+    private final OrderLedger ledger;
+    private final HealthStatusManager health = new HealthStatusManager();
+    private final GrpcMetrics metrics = new GrpcMetrics(OrderProcessorGrpc.getServiceDescriptor());
+    // Fires the deadlines orders bring in their timeout_ms
+    private final ScheduledExecutorService deadlineTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private HttpServer metricsEndpoint;
 
     public static void main(String[] args) throws Exception {
-        ActorSystem<OrderProcessorActor.Command> system = ActorSystem.create(
-                OrderProcessorActor.create(),
-                "OrderProcessorServer");
+        Config config = ConfigFactory.load().getConfig("order-processor");
+        int port = config.getInt("port");
 
-        final OrderProcessorServer server = new OrderProcessorServer(system);
-        server.start();
+        final OrderProcessorServer server = startOnPort(port);
+        server.startMetricsEndpoint(config.getInt("metrics-port"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (InterruptedException e) {
+                e.printStackTrace(System.err);
+            }
+        }));
 
-        System.out.println("Order processor server started on port " + server.port + ". Press ENTER to exit...");
+        System.out.println("Order processor server started on port " + port + ". Press ENTER to exit...");
         System.in.read();
 
         server.stop();
-        system.terminate();
     }
 
-    private OrderProcessorServer(ActorSystem<OrderProcessorActor.Command> system) {
-        ActorRef<OrderProcessorActor.Command> orderProcessorActor = system;
+    /** Starts the order processor on a Netty server listening on the given port. */
+    public static OrderProcessorServer startOnPort(int port) throws IOException {
+        return startOnPort(port, ConfigFactory.load());
+    }
+
+    /** Like {@link #startOnPort(int)}, with the settings under {@code order-processor} taken from the given config. */
+    public static OrderProcessorServer startOnPort(int port, Config rootConfig) throws IOException {
+        ActorSystem<OrderProcessorActor.Command> system = createSystem(rootConfig);
+        Config config = system.settings().config().getConfig("order-processor");
+
+        ServerBuilder<?> builder = NettyServerBuilder.forPort(port)
+                // Clients ping on busy connections, pings more frequent than this are rejected
+                .permitKeepAliveTime(config.getDuration("permit-keepalive-time").toMillis(), TimeUnit.MILLISECONDS);
+
+        OrderProcessorServer server = new OrderProcessorServer(system, builder);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Starts the order processor inside the calling JVM on the gRPC in-process transport under the
+     * given name. Calls through an in-process channel skip sockets and Netty, and protobuf messages
+     * are handed over without being serialized.
+     */
+    public static OrderProcessorServer startInProcess(String name) throws IOException {
+        return startInProcess(name, ConfigFactory.load());
+    }
+
+    /** Like {@link #startInProcess(String)}, with the settings under {@code order-processor} taken from the given config. */
+    public static OrderProcessorServer startInProcess(String name, Config rootConfig) throws IOException {
+        OrderProcessorServer server = new OrderProcessorServer(createSystem(rootConfig), InProcessServerBuilder.forName(name));
+        server.start();
+        return server;
+    }
 
-        server = ServerBuilder.forPort(port)
-                .addService(new OrderProcessorServiceImpl(orderProcessorActor, system))
+    private static ActorSystem<OrderProcessorActor.Command> createSystem(Config rootConfig) {
+        Config config = rootConfig.getConfig("order-processor");
+        int configuredWorkers = config.getInt("workers");
+        int workers = configuredWorkers > 0 ? configuredWorkers : Runtime.getRuntime().availableProcessors();
+        boolean acceptUnknownProducts = config.getBoolean("pricing.accept-unknown-products");
+
+        return ActorSystem.create(Behaviors.setup(context -> {
+            PriceCatalogLoader prices = new PriceCatalogLoader(
+                    Path.of(config.getString("pricing.file")), context.getSystem().log());
+            Duration reloadInterval = config.getDuration("pricing.reload-interval");
+            context.getSystem().scheduler().scheduleAtFixedRate(reloadInterval, reloadInterval,
+                    prices::reloadIfChanged, context.getExecutionContext());
+
+            return OrderProcessorActor.pool(workers, prices, acceptUnknownProducts);
+        }), "OrderProcessorServer", rootConfig);
+    }
+
+    private OrderProcessorServer(ActorSystem<OrderProcessorActor.Command> system, ServerBuilder<?> builder) throws IOException {
+        ActorRef<OrderProcessorActor.Command> orderProcessorActor = system;
+        Config config = system.settings().config().getConfig("order-processor");
+        this.system = system;
+        long segmentSize = config.getMemorySize("ledger.segment-size").toBytes();
+        // Record offsets within a segment are ints
+        if (segmentSize >= Integer.MAX_VALUE) {
+            throw new ConfigException.BadValue(config.origin(), "ledger.segment-size", "must be below 2 GiB");
+        }
+        this.ledger = OrderLedger.open(Path.of(config.getString("ledger.directory")), (int) segmentSize);
+        system.log().info("Order ledger opened with {} recorded receipts", ledger.size());
+
+        IdempotencyCache<ReceiptResponse> idempotencyCache = new IdempotencyCache<>(
+                config.getInt("idempotency.max-entries"),
+                config.getDuration("idempotency.ttl"));
+
+        server = builder
+                .addService(ServerInterceptors.intercept(
+                        new OrderProcessorServiceImpl(orderProcessorActor, system, idempotencyCache, ledger, deadlineTimer),
+                        metrics.serverInterceptor()))
+                .addService(health.getHealthService())
                 .build();
     }
 
     private void start() throws IOException {
         server.start();
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                OrderProcessorServer.this.stop();
-            } catch (InterruptedException e) {
-                e.printStackTrace(System.err);
+        health.setStatus(OrderProcessorGrpc.SERVICE_NAME, ServingStatus.SERVING);
+    }
+
+    /** Serves the call statistics of the order processor service in Prometheus text format under /metrics. */
+    private void startMetricsEndpoint(int port) throws IOException {
+        metricsEndpoint = HttpServer.create(new InetSocketAddress(port), 0);
+        metricsEndpoint.createContext("/metrics", exchange -> {
+            StringBuilder out = new StringBuilder(8192);
+            metrics.writePrometheus(out, "grpc_server");
+            byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(body);
             }
-        }));
+        });
+        metricsEndpoint.start();
     }
 
-    private void stop() throws InterruptedException {
-        if (server != null) {
+    public GrpcMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop(0);
+            metricsEndpoint = null;
+        }
+        if (!server.isShutdown()) {
+            // Let balancing clients move to other processors before the connections go away
+            health.enterTerminalState();
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+            ledger.close();
+            deadlineTimer.shutdownNow();
+            system.terminate();
         }
     }
 }
@@ -65,26 +198,231 @@ public class OrderProcessorServer {
 class OrderProcessorServiceImpl extends OrderProcessorGrpc.OrderProcessorImplBase {
     private final ActorRef<OrderProcessorActor.Command> orderProcessor;
     private final ActorSystem<?> system;
+    private final IdempotencyCache<ReceiptResponse> idempotencyCache;
+    private final OrderLedger ledger;
+    private final ScheduledExecutorService deadlineTimer;
 
-    public OrderProcessorServiceImpl(ActorRef<OrderProcessorActor.Command> orderProcessor, ActorSystem<?> system) {
+    public OrderProcessorServiceImpl(ActorRef<OrderProcessorActor.Command> orderProcessor, ActorSystem<?> system,
+                                     IdempotencyCache<ReceiptResponse> idempotencyCache, OrderLedger ledger,
+                                     ScheduledExecutorService deadlineTimer) {
         this.orderProcessor = orderProcessor;
         this.system = system;
+        this.idempotencyCache = idempotencyCache;
+        this.ledger = ledger;
+        this.deadlineTimer = deadlineTimer;
     }
 
+    // Number of orders a stream may have in processing before the server stops reading from it
+    private static final int STREAM_WINDOW = 64;
+
     @Override
     public void processOrder(OrderRequest request, StreamObserver<ReceiptResponse> responseObserver) {
-        CompletableFuture<ReceiptResponse> future = new CompletableFuture<>();
+        ServerCallStreamObserver<ReceiptResponse> call = (ServerCallStreamObserver<ReceiptResponse>) responseObserver;
+        // A cancelled or expired call gets no answer, the client has already given up on it
+        call.setOnCancelHandler(() -> {});
+
+        process(request, orderContext(request)).whenComplete((response, ex) -> {
+            if (call.isCancelled()) {
+                return;
+            }
+            if (ex == null) {
+                call.onNext(response);
+                call.onCompleted();
+            } else {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                call.onError(Status.fromThrowable(cause).asRuntimeException());
+            }
+        });
+    }
 
-        orderProcessor.tell(new OrderProcessorActor.ProcessOrderCommand(request, future));
+    @Override
+    public StreamObserver<OrderRequest> processOrders(StreamObserver<OrderResult> responseObserver) {
+        return new OrderStream((ServerCallStreamObserver<OrderResult>) responseObserver);
+    }
 
-        future.thenAccept(response -> {
-            responseObserver.onNext(response);
+    @Override
+    public void processOrderBatch(OrderBatchRequest request, StreamObserver<ReceiptBatchResponse> responseObserver) {
+        int count = request.getOrdersCount();
+        OrderResult[] results = new OrderResult[count];
+        CompletableFuture<?>[] processed = new CompletableFuture<?>[count];
+
+        // Orders of a batch are priced independently, a failing order does not fail the batch
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            OrderRequest order = request.getOrders(i);
+            processed[i] = process(order, orderContext(order)).handle((receipt, ex) -> {
+                results[index] = toOrderResult(order.getOrderId(), receipt, ex);
+                return null;
+            });
+        }
+
+        CompletableFuture.allOf(processed).thenRun(() -> {
+            ReceiptBatchResponse.Builder response = ReceiptBatchResponse.newBuilder();
+            for (OrderResult result : results) {
+                response.addResults(result);
+            }
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
-        }).exceptionally(ex -> {
-            responseObserver.onError(ex);
-            return null;
         });
     }
+
+    @Override
+    public void getReceipt(ReceiptLookupRequest request, StreamObserver<ReceiptResponse> responseObserver) {
+        Optional<ReceiptResponse> receipt = ledger.find(request.getOrderId());
+        if (receipt.isPresent()) {
+            responseObserver.onNext(receipt.get());
+            responseObserver.onCompleted();
+        } else {
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("No receipt for order " + request.getOrderId())
+                    .asRuntimeException());
+        }
+    }
+
+    // Every order runs in a context of its own below the call's, so an order on a stream or in a batch is
+    // dropped at its own timeout_ms or on a cancel without affecting the others
+    private Context.CancellableContext orderContext(OrderRequest request) {
+        Context call = Context.current();
+        return request.getTimeoutMs() > 0
+                ? call.withDeadlineAfter(request.getTimeoutMs(), TimeUnit.MILLISECONDS, deadlineTimer)
+                : call.withCancellation();
+    }
+
+    private CompletableFuture<ReceiptResponse> process(OrderRequest request, Context.CancellableContext context) {
+        if (context.isCancelled()) {
+            return CompletableFuture.failedFuture(Contexts.statusFromCancelled(context).asRuntimeException());
+        }
+
+        // A resent order id gets the stored receipt instead of being charged again
+        return idempotencyCache.getOrCompute(request.getOrderId(), () -> {
+            // Orders priced before a restart are answered from the ledger
+            Optional<ReceiptResponse> recorded = ledger.find(request.getOrderId());
+            if (recorded.isPresent()) {
+                return CompletableFuture.completedFuture(recorded.get());
+            }
+
+            CompletableFuture<ReceiptResponse> processed = new CompletableFuture<>();
+            orderProcessor.tell(new OrderProcessorActor.ProcessOrderCommand(request, context, processed));
+            // The receipt is only handed out once it is recorded. An order given up while it was priced is not
+            // recorded, failures are not cached, so a retry prices it again.
+            return processed.thenCompose(receipt -> context.isCancelled()
+                    ? CompletableFuture.<ReceiptResponse>failedFuture(
+                            Contexts.statusFromCancelled(context).asRuntimeException())
+                    : ledger.append(receipt).thenApply(written -> receipt));
+        }).whenComplete((receipt, ex) -> context.cancel(null));
+    }
+
+    static OrderResult toOrderResult(String orderId, ReceiptResponse receipt, Throwable error) {
+        OrderResult.Builder result = OrderResult.newBuilder().setOrderId(orderId);
+        if (error == null) {
+            result.setReceipt(receipt);
+        } else {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            result.setError(String.valueOf(cause.getMessage()));
+        }
+        return result.build();
+    }
+
+    /**
+     * One bidirectional order stream. Inbound orders are only requested while fewer than
+     * {@link #STREAM_WINDOW} are in processing and the outbound side is ready, so a slow
+     * client or a busy processor pushes back on the sender.
+     */
+    private final class OrderStream implements StreamObserver<OrderRequest> {
+        private final ServerCallStreamObserver<OrderResult> responseObserver;
+        // Contexts of the orders in processing by order id, for cancels sent by the client
+        private final Map<String, Context.CancellableContext> running = new HashMap<>();
+        private int inFlight;
+        private int deferredRequests;
+        private boolean halfClosed;
+        private boolean done;
+
+        OrderStream(ServerCallStreamObserver<OrderResult> responseObserver) {
+            this.responseObserver = responseObserver;
+            responseObserver.disableAutoRequest();
+            responseObserver.setOnReadyHandler(this::onReady);
+            responseObserver.setOnCancelHandler(() -> {
+                synchronized (this) {
+                    done = true;
+                }
+            });
+            responseObserver.request(STREAM_WINDOW);
+        }
+
+        @Override
+        public void onNext(OrderRequest request) {
+            if (request.getCancel()) {
+                Context.CancellableContext order;
+                synchronized (this) {
+                    order = running.get(request.getOrderId());
+                    // A cancel takes no place in the window
+                    requestNext();
+                }
+                if (order != null) {
+                    order.cancel(Status.CANCELLED.withDescription("Order cancelled by the client").asRuntimeException());
+                }
+                return;
+            }
+
+            Context.CancellableContext context = orderContext(request);
+            synchronized (this) {
+                inFlight++;
+                running.put(request.getOrderId(), context);
+            }
+            process(request, context).whenComplete((receipt, ex) ->
+                    onProcessed(toOrderResult(request.getOrderId(), receipt, ex), context));
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                done = true;
+            }
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            halfClosed = true;
+            completeIfDrained();
+        }
+
+        private synchronized void onProcessed(OrderResult result, Context.CancellableContext context) {
+            inFlight--;
+            running.remove(result.getOrderId(), context);
+            if (done) {
+                return;
+            }
+
+            responseObserver.onNext(result);
+            requestNext();
+            completeIfDrained();
+        }
+
+        private void requestNext() {
+            if (done) {
+                return;
+            }
+            if (responseObserver.isReady()) {
+                responseObserver.request(1);
+            } else {
+                deferredRequests++;
+            }
+        }
+
+        private synchronized void onReady() {
+            if (!done && deferredRequests > 0) {
+                responseObserver.request(deferredRequests);
+                deferredRequests = 0;
+            }
+        }
+
+        private void completeIfDrained() {
+            if (halfClosed && inFlight == 0 && !done) {
+                done = true;
+                responseObserver.onCompleted();
+            }
+        }
+    }
 }
 
 class OrderProcessorActor extends AbstractBehavior<OrderProcessorActor.Command> {
@@ -93,20 +431,41 @@ class OrderProcessorActor extends AbstractBehavior<OrderProcessorActor.Command>
 
     public static final class ProcessOrderCommand implements Command {
         final OrderRequest request;
+        final Context context;
         final CompletableFuture<ReceiptResponse> replyTo;
 
-        public ProcessOrderCommand(OrderRequest request, CompletableFuture<ReceiptResponse> replyTo) {
+        public ProcessOrderCommand(OrderRequest request, Context context, CompletableFuture<ReceiptResponse> replyTo) {
             this.request = request;
+            this.context = context;
             this.replyTo = replyTo;
         }
     }
 
-    public static Behavior<Command> create() {
-        return Behaviors.setup(OrderProcessorActor::new);
+    private final PriceCatalogLoader prices;
+    private final boolean acceptUnknownProducts;
+
+    public static Behavior<Command> create(PriceCatalogLoader prices, boolean acceptUnknownProducts) {
+        return Behaviors.setup(context -> new OrderProcessorActor(context, prices, acceptUnknownProducts));
+    }
+
+    // Consistent hashing on the order id keeps all commands for one order on the same worker, in order
+    public static Behavior<Command> pool(int workers, PriceCatalogLoader prices, boolean acceptUnknownProducts) {
+        return Routers.pool(workers,
+                        Behaviors.supervise(create(prices, acceptUnknownProducts)).onFailure(SupervisorStrategy.restart()))
+                .withConsistentHashingRouting(10, OrderProcessorActor::routingKey);
     }
 
-    private OrderProcessorActor(ActorContext<Command> context) {
+    static String routingKey(Command command) {
+        if (command instanceof ProcessOrderCommand) {
+            return ((ProcessOrderCommand) command).request.getOrderId();
+        }
+        return "";
+    }
+
+    private OrderProcessorActor(ActorContext<Command> context, PriceCatalogLoader prices, boolean acceptUnknownProducts) {
         super(context);
+        this.prices = prices;
+        this.acceptUnknownProducts = acceptUnknownProducts;
         getContext().getLog().info("Order Processor Actor started");
     }
 
@@ -119,30 +478,52 @@ class OrderProcessorActor extends AbstractBehavior<OrderProcessorActor.Command>
 
     private Behavior<Command> onProcessOrder(ProcessOrderCommand cmd) {
         OrderRequest request = cmd.request;
+
+        // The caller gave up while the order was queued, failures are not cached so a retry is priced again
+        if (cmd.context.isCancelled()) {
+            getContext().getLog().info("Skipping cancelled order: {}", request.getOrderId());
+            cmd.replyTo.completeExceptionally(Contexts.statusFromCancelled(cmd.context).asRuntimeException());
+            return this;
+        }
+
         getContext().getLog().info("Processing order: {}", request.getOrderId());
 
         try {
-            BigDecimal totalPrice = BigDecimal.ZERO;
+            // One snapshot per order, a reload in between does not mix two price lists
+            PriceCatalog catalog = prices.current();
+            ReceiptResponse.Builder response = ReceiptResponse.newBuilder()
+                    .setOrderId(request.getOrderId())
+                    .setTimestamp(request.getTimestamp());
+
+            long totalCents = catalog.processingFeeCents();
             for (OrderItemProto item : request.getItemsList()) {
-                BigDecimal itemPrice = new BigDecimal(item.getProduct().getPrice());
-                BigDecimal quantity = BigDecimal.valueOf(item.getQuantity());
-                totalPrice = totalPrice.add(itemPrice.multiply(quantity));
+                ProductProto product = item.getProduct();
+                PriceCatalog.Price price = catalog.priceOf(product.getId());
+
+                long unitCents;
+                if (price != null) {
+                    unitCents = price.cents;
+                    if (!price.text.equals(product.getPrice())) {
+                        // Receipts carry the processor's price, not the one the client sent
+                        item = item.toBuilder().setProduct(product.toBuilder().setPrice(price.text)).build();
+                    }
+                } else if (acceptUnknownProducts) {
+                    unitCents = PriceCatalog.toCents(new BigDecimal(product.getPrice()));
+                } else {
+                    throw new IllegalArgumentException("Unknown product: " + product.getId());
+                }
+
+                totalCents += catalog.lineTotalCents(unitCents, item.getQuantity());
+                response.addItems(item);
             }
 
-            // Processing fee
-            totalPrice = totalPrice.add(new BigDecimal("1.99"));
-
-            ReceiptResponse response = ReceiptResponse.newBuilder()
-                    .setOrderId(request.getOrderId())
-                    .setTimestamp(request.getTimestamp())
-                    .addAllItems(request.getItemsList())
-                    .setTotalPrice(totalPrice.toString())
-                    .build();
+            String totalPrice = PriceCatalog.formatCents(totalCents);
+            response.setTotalPrice(totalPrice);
 
             getContext().getLog().info("Order {} processed successfully. Total: {}",
                     request.getOrderId(), totalPrice);
 
-            cmd.replyTo.complete(response);
+            cmd.replyTo.complete(response.build());
 
         } catch (Exception e) {
             getContext().getLog().error("Failed to process order: {}", e.getMessage());
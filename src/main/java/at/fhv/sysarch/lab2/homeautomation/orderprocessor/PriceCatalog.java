@@ -0,0 +1,73 @@
+package at.fhv.sysarch.lab2.homeautomation.orderprocessor;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/** Immutable snapshot of the processor's prices and quantity discounts. */
+final class PriceCatalog {
+
+    static final class Price {
+        final long cents;
+        final String text;
+
+        private Price(long cents) {
+            this.cents = cents;
+            this.text = formatCents(cents);
+        }
+    }
+
+    private final Map<String, Price> prices;
+    private final long processingFeeCents;
+    // Discount in basis points by ordered quantity, the last entry applies to all larger quantities
+    private final int[] discountByQuantity;
+
+    PriceCatalog(Map<String, Long> centsById, long processingFeeCents,
+                 SortedMap<Integer, Integer> discountBasisPointsByMinQuantity) {
+        Map<String, Price> prices = new HashMap<>();
+        centsById.forEach((id, cents) -> prices.put(id, new Price(cents)));
+        this.prices = Map.copyOf(prices);
+        this.processingFeeCents = processingFeeCents;
+
+        int maxQuantity = discountBasisPointsByMinQuantity.isEmpty() ? 0 : discountBasisPointsByMinQuantity.lastKey();
+        this.discountByQuantity = new int[maxQuantity + 1];
+        discountBasisPointsByMinQuantity.forEach((minQuantity, basisPoints) -> {
+            for (int quantity = minQuantity; quantity <= maxQuantity; quantity++) {
+                discountByQuantity[quantity] = basisPoints;
+            }
+        });
+    }
+
+    /** The price of the product, or {@code null} if the catalog does not list it. */
+    Price priceOf(String productId) {
+        return prices.get(productId);
+    }
+
+    long lineTotalCents(long unitCents, int quantity) {
+        long gross = unitCents * quantity;
+        int basisPoints = discountByQuantity[Math.min(quantity, discountByQuantity.length - 1)];
+        if (basisPoints == 0) {
+            return gross;
+        }
+        // Discounts are rounded half up to whole cents
+        return gross - (gross * basisPoints + 5_000) / 10_000;
+    }
+
+    long processingFeeCents() {
+        return processingFeeCents;
+    }
+
+    int size() {
+        return prices.size();
+    }
+
+    static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    static String formatCents(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}
@@ -0,0 +1,86 @@
+package at.fhv.sysarch.lab2.homeautomation.orderprocessor;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Holds the current {@link PriceCatalog}, read from a file or the {@code prices.conf} resource. */
+final class PriceCatalogLoader {
+
+    private static final String RESOURCE = "prices.conf";
+
+    private final Path file;
+    private final Logger log;
+    private final AtomicReference<PriceCatalog> current = new AtomicReference<>();
+    private FileTime loadedVersion;
+
+    PriceCatalogLoader(Path file, Logger log) {
+        this.file = file;
+        this.log = log;
+        reloadIfChanged();
+        if (current.get() == null) {
+            current.set(parse(ConfigFactory.parseResources(RESOURCE)));
+            log.info("Loaded {} prices from classpath resource {}", current.get().size(), RESOURCE);
+        }
+    }
+
+    PriceCatalog current() {
+        return current.get();
+    }
+
+    synchronized void reloadIfChanged() {
+        FileTime version;
+        try {
+            version = Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return;
+        }
+        if (version.equals(loadedVersion)) {
+            return;
+        }
+
+        try {
+            PriceCatalog catalog = parse(ConfigFactory.parseFile(file.toFile()));
+            current.set(catalog);
+            log.info("Loaded {} prices from {}", catalog.size(), file);
+        } catch (ConfigException | ArithmeticException | NumberFormatException e) {
+            log.error("Could not load prices from {}, keeping the previous prices: {}", file, e.getMessage());
+        }
+        loadedVersion = version;
+    }
+
+    static PriceCatalog parse(Config config) {
+        Map<String, Long> prices = new HashMap<>();
+        Config priceConfig = config.getConfig("prices");
+        for (String id : priceConfig.root().keySet()) {
+            prices.put(id, PriceCatalog.toCents(new BigDecimal(priceConfig.getString(id))));
+        }
+
+        Config rules = config.getConfig("rules");
+        long processingFee = PriceCatalog.toCents(new BigDecimal(rules.getString("processing-fee")));
+
+        SortedMap<Integer, Integer> discounts = new TreeMap<>();
+        for (Config tier : rules.getConfigList("quantity-discounts")) {
+            int minQuantity = tier.getInt("min-quantity");
+            if (minQuantity < 1) {
+                throw new ConfigException.BadValue(tier.origin(), "min-quantity", "must be at least 1");
+            }
+            int basisPoints = new BigDecimal(tier.getString("percent")).movePointRight(2).intValueExact();
+            discounts.put(minQuantity, basisPoints);
+        }
+
+        return new PriceCatalog(prices, processingFee, discounts);
+    }
+}
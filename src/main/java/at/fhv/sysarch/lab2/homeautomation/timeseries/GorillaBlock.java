@@ -0,0 +1,218 @@
+package at.fhv.sysarch.lab2.homeautomation.timeseries;
+
+import java.util.Arrays;
+
+/** Samples compressed as in Facebook's Gorilla paper. Appended in timestamp order, not thread-safe. */
+final class GorillaBlock {
+
+    private final int capacity;
+    private long[] words = new long[16];
+    private int bitPosition;
+    private int count;
+
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    GorillaBlock(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void append(long timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            writeBits(timestamp, 64);
+            writeBits(valueBits, 64);
+            firstTimestamp = timestamp;
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeTimestamp(delta - lastDelta);
+            lastDelta = delta;
+            writeValue(valueBits ^ lastValueBits);
+        }
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        count++;
+    }
+
+    boolean isFull() {
+        return count >= capacity;
+    }
+
+    /** Drops the unused part of the buffer once no more samples will be appended. */
+    void seal() {
+        words = Arrays.copyOf(words, (bitPosition + 63) >>> 6);
+    }
+
+    int count() {
+        return count;
+    }
+
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long sizeBytes() {
+        return (long) words.length * Long.BYTES;
+    }
+
+    /** Hands the samples with {@code from <= timestamp <= to} to the consumer, in timestamp order. */
+    void forEach(long from, long to, TimeSeries.SampleConsumer consumer) {
+        if (count == 0 || lastTimestamp < from || firstTimestamp > to) {
+            return;
+        }
+        Reader reader = new Reader();
+        for (int i = 0; i < count; i++) {
+            reader.next();
+            if (reader.timestamp > to) {
+                return;
+            }
+            if (reader.timestamp >= from) {
+                consumer.accept(reader.timestamp, Double.longBitsToDouble(reader.valueBits));
+            }
+        }
+    }
+
+    // '0' | '10' 7 bits | '110' 9 bits | '1110' 12 bits | '11110' 32 bits | '11111' 64 bits
+    private void writeTimestamp(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if (fits(deltaOfDelta, 7)) {
+            writeBits(0b10, 2);
+            writeBits(deltaOfDelta, 7);
+        } else if (fits(deltaOfDelta, 9)) {
+            writeBits(0b110, 3);
+            writeBits(deltaOfDelta, 9);
+        } else if (fits(deltaOfDelta, 12)) {
+            writeBits(0b1110, 4);
+            writeBits(deltaOfDelta, 12);
+        } else if (fits(deltaOfDelta, 32)) {
+            writeBits(0b11110, 5);
+            writeBits(deltaOfDelta, 32);
+        } else {
+            writeBits(0b11111, 5);
+            writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    // '0' unchanged | '10' bits inside the previous window | '11' 5 bits leading, 6 bits length - 1, bits
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+        } else {
+            int significant = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(significant - 1, 6);
+            writeBits(xor >>> trailing, significant);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    private void writeBits(long value, int bits) {
+        if (bitPosition + bits > (long) words.length * 64) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        int index = bitPosition >>> 6;
+        int free = 64 - (bitPosition & 63);
+        value &= mask(bits);
+        if (bits <= free) {
+            words[index] |= value << (free - bits);
+        } else {
+            int rest = bits - free;
+            words[index] |= value >>> rest;
+            words[index + 1] |= value << (64 - rest);
+        }
+        bitPosition += bits;
+    }
+
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private final class Reader {
+        int position;
+        int index;
+        long timestamp;
+        long delta;
+        long valueBits;
+        int leading;
+        int trailing;
+
+        void next() {
+            if (index++ == 0) {
+                timestamp = readBits(64);
+                valueBits = readBits(64);
+                return;
+            }
+            delta += readDeltaOfDelta();
+            timestamp += delta;
+            if (readBits(1) == 1) {
+                if (readBits(1) == 1) {
+                    leading = (int) readBits(5);
+                    trailing = 64 - leading - ((int) readBits(6) + 1);
+                }
+                valueBits ^= readBits(64 - leading - trailing) << trailing;
+            }
+        }
+
+        private long readDeltaOfDelta() {
+            int prefix = 0;
+            while (prefix < 5 && readBits(1) == 1) {
+                prefix++;
+            }
+            switch (prefix) {
+                case 0:
+                    return 0;
+                case 1:
+                    return signed(readBits(7), 7);
+                case 2:
+                    return signed(readBits(9), 9);
+                case 3:
+                    return signed(readBits(12), 12);
+                case 4:
+                    return signed(readBits(32), 32);
+                default:
+                    return readBits(64);
+            }
+        }
+
+        private long readBits(int bits) {
+            int wordIndex = position >>> 6;
+            int free = 64 - (position & 63);
+            long result;
+            if (bits <= free) {
+                result = (words[wordIndex] >>> (free - bits)) & mask(bits);
+            } else {
+                int rest = bits - free;
+                result = ((words[wordIndex] & mask(free)) << rest) | (words[wordIndex + 1] >>> (64 - rest));
+            }
+            position += bits;
+            return result;
+        }
+
+        private long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+    }
+}
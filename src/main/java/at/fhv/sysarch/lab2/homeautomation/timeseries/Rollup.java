@@ -0,0 +1,101 @@
+package at.fhv.sysarch.lab2.homeautomation.timeseries;
+
+import java.util.Arrays;
+
+/** Min, max, sum and count per time window of one resolution, in ring buffers. Not thread-safe. */
+final class Rollup {
+
+    @FunctionalInterface
+    interface WindowConsumer {
+        void accept(long startMillis, double min, double max, double sum, int count);
+    }
+
+    private final long resolutionMillis;
+    private final long[] windowIndexes;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] sums;
+    private final int[] counts;
+    private long newestWindow = Long.MIN_VALUE;
+    // Bounds and slot of the newest window, so samples falling into it skip the divisions
+    private long newestStart = Long.MAX_VALUE;
+    private long newestEnd = Long.MIN_VALUE;
+    private int newestSlot;
+
+    Rollup(long resolutionMillis, int windows) {
+        if (resolutionMillis <= 0 || windows <= 0) {
+            throw new IllegalArgumentException("Rollup resolution and window count must be positive");
+        }
+        this.resolutionMillis = resolutionMillis;
+        this.windowIndexes = new long[windows];
+        this.mins = new double[windows];
+        this.maxs = new double[windows];
+        this.sums = new double[windows];
+        this.counts = new int[windows];
+        Arrays.fill(windowIndexes, Long.MIN_VALUE);
+    }
+
+    long resolutionMillis() {
+        return resolutionMillis;
+    }
+
+    void add(long timestampMillis, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (timestampMillis >= newestStart && timestampMillis < newestEnd) {
+            int slot = newestSlot;
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            sums[slot] += value;
+            counts[slot]++;
+            return;
+        }
+
+        long window = Math.floorDiv(timestampMillis, resolutionMillis);
+        int slot = (int) Math.floorMod(window, (long) windowIndexes.length);
+        if (windowIndexes[slot] != window) {
+            windowIndexes[slot] = window;
+            mins[slot] = value;
+            maxs[slot] = value;
+            sums[slot] = value;
+            counts[slot] = 1;
+        } else {
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            sums[slot] += value;
+            counts[slot]++;
+        }
+        if (window >= newestWindow) {
+            newestWindow = window;
+            newestStart = window * resolutionMillis;
+            newestEnd = newestStart + resolutionMillis;
+            newestSlot = slot;
+        }
+    }
+
+    /** Whether the window containing the timestamp is still in the ring (or nothing was recorded yet). */
+    boolean covers(long timestampMillis) {
+        return newestWindow == Long.MIN_VALUE
+                || Math.floorDiv(timestampMillis, resolutionMillis) > newestWindow - windowIndexes.length;
+    }
+
+    long windowCount(long fromMillis, long toMillis) {
+        return Math.floorDiv(toMillis, resolutionMillis) - Math.floorDiv(fromMillis, resolutionMillis) + 1;
+    }
+
+    /** Hands the windows overlapping {@code [from, to]} that hold samples to the consumer, oldest first. */
+    void forEach(long fromMillis, long toMillis, WindowConsumer consumer) {
+        if (newestWindow == Long.MIN_VALUE) {
+            return;
+        }
+        long first = Math.max(Math.floorDiv(fromMillis, resolutionMillis), newestWindow - windowIndexes.length + 1);
+        long last = Math.min(Math.floorDiv(toMillis, resolutionMillis), newestWindow);
+        for (long window = first; window <= last; window++) {
+            int slot = (int) Math.floorMod(window, (long) windowIndexes.length);
+            if (windowIndexes[slot] == window) {
+                consumer.accept(window * resolutionMillis, mins[slot], maxs[slot], sums[slot], counts[slot]);
+            }
+        }
+    }
+}
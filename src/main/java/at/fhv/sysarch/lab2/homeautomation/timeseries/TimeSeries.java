@@ -0,0 +1,176 @@
+package at.fhv.sysarch.lab2.homeautomation.timeseries;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/** The readings of one sensor in {@link GorillaBlock}s, dropped once older than the retention. */
+public final class TimeSeries {
+
+    @FunctionalInterface
+    public interface SampleConsumer {
+        void accept(long timestampMillis, double value);
+    }
+
+    public static final class Sample {
+        public final long timestampMillis;
+        public final double value;
+
+        public Sample(long timestampMillis, double value) {
+            this.timestampMillis = timestampMillis;
+            this.value = value;
+        }
+    }
+
+    public static final class Aggregate {
+        public final long startMillis;
+        public final double min;
+        public final double max;
+        public final double avg;
+        public final int count;
+
+        public Aggregate(long startMillis, double min, double max, double avg, int count) {
+            this.startMillis = startMillis;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+            this.count = count;
+        }
+    }
+
+    public static final class Aggregates {
+        public final Duration resolution;
+        public final List<Aggregate> windows;
+
+        public Aggregates(Duration resolution, List<Aggregate> windows) {
+            this.resolution = resolution;
+            this.windows = windows;
+        }
+    }
+
+    private final String name;
+    private final int blockSize;
+    private final long retentionMillis;
+    // Ordered from the finest to the coarsest resolution
+    private final List<Rollup> rollups;
+    private final ArrayDeque<GorillaBlock> sealed = new ArrayDeque<>();
+    private GorillaBlock open;
+    private long sealedSamples;
+    private long sealedBytes;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private double lastValue;
+    private long lateSamples;
+
+    TimeSeries(String name, int blockSize, long retentionMillis, List<Rollup> rollups) {
+        this.name = name;
+        this.blockSize = blockSize;
+        this.retentionMillis = retentionMillis;
+        this.rollups = rollups;
+        this.open = new GorillaBlock(blockSize);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean record(double value) {
+        return record(System.currentTimeMillis(), value);
+    }
+
+    /**
+     * Appends the sample and returns {@code true}, or counts it as late and returns {@code false} if it is
+     * older than the last one: blocks only take timestamps in order.
+     */
+    public synchronized boolean record(long timestampMillis, double value) {
+        if (timestampMillis < lastTimestamp) {
+            lateSamples++;
+            return false;
+        }
+        open.append(timestampMillis, value);
+        for (Rollup rollup : rollups) {
+            rollup.add(timestampMillis, value);
+        }
+        lastTimestamp = timestampMillis;
+        lastValue = value;
+
+        if (open.isFull()) {
+            open.seal();
+            sealed.addLast(open);
+            sealedSamples += open.count();
+            sealedBytes += open.sizeBytes();
+            open = new GorillaBlock(blockSize);
+            evictExpired();
+        }
+        return true;
+    }
+
+    public synchronized Optional<Sample> last() {
+        return lastTimestamp == Long.MIN_VALUE ? Optional.empty() : Optional.of(new Sample(lastTimestamp, lastValue));
+    }
+
+    /** Hands the samples with {@code from <= timestamp <= to} to the consumer, in timestamp order. */
+    public synchronized void range(long fromMillis, long toMillis, SampleConsumer consumer) {
+        for (GorillaBlock block : sealed) {
+            block.forEach(fromMillis, toMillis, consumer);
+        }
+        open.forEach(fromMillis, toMillis, consumer);
+    }
+
+    public List<Sample> range(long fromMillis, long toMillis) {
+        List<Sample> samples = new ArrayList<>();
+        range(fromMillis, toMillis, (timestamp, value) -> samples.add(new Sample(timestamp, value)));
+        return samples;
+    }
+
+    /**
+     * Aggregates of {@code [from, to]} from the coarsest rollup that still holds {@code from} and splits the
+     * range into at least {@code minWindows} windows. If none does, the finest rollup holding {@code from} is
+     * used, and the coarsest one if the range reaches back further than every rollup.
+     */
+    public synchronized Optional<Aggregates> aggregate(long fromMillis, long toMillis, int minWindows) {
+        if (rollups.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Rollup chosen = null;
+        for (Rollup rollup : rollups) {
+            if (rollup.covers(fromMillis) && rollup.windowCount(fromMillis, toMillis) >= minWindows) {
+                chosen = rollup;
+            }
+        }
+        if (chosen == null) {
+            chosen = rollups.stream()
+                    .filter(rollup -> rollup.covers(fromMillis))
+                    .findFirst()
+                    .orElse(rollups.get(rollups.size() - 1));
+        }
+
+        List<Aggregate> windows = new ArrayList<>();
+        chosen.forEach(fromMillis, toMillis, (start, min, max, sum, count) ->
+                windows.add(new Aggregate(start, min, max, sum / count, count)));
+        return Optional.of(new Aggregates(Duration.ofMillis(chosen.resolutionMillis()), windows));
+    }
+
+    public synchronized long size() {
+        return sealedSamples + open.count();
+    }
+
+    public synchronized long sizeBytes() {
+        return sealedBytes + open.sizeBytes();
+    }
+
+    /** Samples rejected by {@link #record(long, double)} for arriving out of order. */
+    public synchronized long lateSamples() {
+        return lateSamples;
+    }
+
+    private void evictExpired() {
+        while (!sealed.isEmpty() && sealed.peekFirst().lastTimestamp() < lastTimestamp - retentionMillis) {
+            GorillaBlock expired = sealed.removeFirst();
+            sealedSamples -= expired.count();
+            sealedBytes -= expired.sizeBytes();
+        }
+    }
+}
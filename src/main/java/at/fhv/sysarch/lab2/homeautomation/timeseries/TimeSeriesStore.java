@@ -0,0 +1,86 @@
+package at.fhv.sysarch.lab2.homeautomation.timeseries;
+
+import com.typesafe.config.Config;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** In-memory history of the sensor readings, one {@link TimeSeries} per {@code <type>/<sensor>}. */
+public class TimeSeriesStore implements MeterBinder {
+
+    private final ConcurrentMap<String, TimeSeries> series = new ConcurrentHashMap<>();
+    private final int blockSize;
+    private final long retentionMillis;
+    private final List<? extends Config> rollups;
+
+    public TimeSeriesStore(Config config) {
+        this.blockSize = config.getInt("block-size");
+        this.retentionMillis = config.getDuration("retention").toMillis();
+        this.rollups = config.getConfigList("rollups");
+    }
+
+    public TimeSeries series(String name) {
+        return series.computeIfAbsent(name, n -> new TimeSeries(n, blockSize, retentionMillis, newRollups()));
+    }
+
+    private List<Rollup> newRollups() {
+        List<Rollup> created = new ArrayList<>();
+        for (Config rollup : rollups) {
+            created.add(new Rollup(rollup.getDuration("resolution").toMillis(), rollup.getInt("windows")));
+        }
+        created.sort(Comparator.comparingLong(Rollup::resolutionMillis));
+        return created;
+    }
+
+    public Optional<TimeSeries> find(String name) {
+        return Optional.ofNullable(series.get(name));
+    }
+
+    public List<String> getNames() {
+        List<String> names = new ArrayList<>(series.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    public long getSampleCount() {
+        return series.values().stream().mapToLong(TimeSeries::size).sum();
+    }
+
+    public long getLateSampleCount() {
+        return series.values().stream().mapToLong(TimeSeries::lateSamples).sum();
+    }
+
+    public long getSizeBytes() {
+        return series.values().stream().mapToLong(TimeSeries::sizeBytes).sum();
+    }
+
+    public double getBytesPerSample() {
+        long samples = getSampleCount();
+        return samples == 0 ? 0.0 : (double) getSizeBytes() / samples;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("timeseries.series", series, ConcurrentMap::size)
+                .register(registry);
+        Gauge.builder("timeseries.samples", this, TimeSeriesStore::getSampleCount)
+                .register(registry);
+        Gauge.builder("timeseries.samples.late", this, TimeSeriesStore::getLateSampleCount)
+                .description("Samples rejected for being older than the last sample of their series")
+                .register(registry);
+        Gauge.builder("timeseries.size", this, TimeSeriesStore::getSizeBytes)
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("timeseries.bytes.per.sample", this, TimeSeriesStore::getBytesPerSample)
+                .description("Compressed size of the stored sensor history per sample")
+                .register(registry);
+    }
+}
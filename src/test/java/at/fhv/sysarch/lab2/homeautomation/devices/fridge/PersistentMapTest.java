@@ -0,0 +1,57 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentMapTest {
+
+    // Few distinct hashes, so keys collide at every level of the trie
+    private record Key(int id, int hash) {
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Test
+    void behavesLikeAHashMapAndKeepsOlderVersions() {
+        Random random = new Random(7);
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+
+        for (int i = 0; i < 20_000; i++) {
+            int id = random.nextInt(500);
+            int[] hashes = {id, id & 7, id << 27, Integer.MIN_VALUE | (id & 3)};
+            Key key = new Key(id, hashes[id % hashes.length]);
+
+            Map<Key, Integer> before = new HashMap<>(expected);
+            PersistentMap<Key, Integer> previous = map;
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+            if (i % 1_000 == 0) {
+                assertEquals(expected, map.asMap());
+                assertEquals(before, previous.asMap());
+            }
+        }
+
+        for (Map.Entry<Key, Integer> entry : expected.entrySet()) {
+            map = map.minus(entry.getKey());
+        }
+        assertTrue(map.isEmpty());
+        assertEquals(Map.of(), map.asMap());
+    }
+}
@@ -0,0 +1,119 @@
+package at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Order;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.OrderItem;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.Product;
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.ProductCatalog;
+import at.fhv.sysarch.lab2.homeautomation.grpc.GrpcMetrics;
+import at.fhv.sysarch.lab2.homeautomation.orderprocessor.OrderProcessorServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Orders of one client against three order processors in this JVM, each on a port of its own. */
+class OrderProcessorBalancingTest {
+
+    private static final int PROCESSORS = 3;
+    private static final int ORDERS = 300;
+
+    private final List<OrderProcessorServer> servers = new ArrayList<>();
+    private final List<Path> ledgers = new ArrayList<>();
+    private ActorSystem<Void> system;
+    private OrderProcessorClient client;
+
+    @AfterEach
+    void stop() throws Exception {
+        if (client != null) {
+            client.shutdown();
+        }
+        if (system != null) {
+            system.terminate();
+        }
+        for (OrderProcessorServer server : servers) {
+            server.stop();
+        }
+        for (Path ledger : ledgers) {
+            try (Stream<Path> files = Files.walk(ledger)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    void unaryCallsReachEveryProcessor() throws Exception {
+        sendOrders(false);
+        assertEveryProcessorReceivedOrders();
+    }
+
+    @Test
+    void streamedOrdersReachEveryProcessor() throws Exception {
+        sendOrders(true);
+        assertEveryProcessorReceivedOrders();
+    }
+
+    private void sendOrders(boolean streaming) throws Exception {
+        List<String> endpoints = new ArrayList<>();
+        for (int i = 0; i < PROCESSORS; i++) {
+            int port = freePort();
+            Path ledger = Files.createTempDirectory("ledger-test");
+            ledgers.add(ledger);
+            Config config = ConfigFactory.parseMap(Map.of("ledger.directory", ledger.toString()))
+                    .atPath("order-processor")
+                    .withFallback(ConfigFactory.load());
+            servers.add(OrderProcessorServer.startOnPort(port, config));
+            endpoints.add("localhost:" + port);
+        }
+
+        Config config = ConfigFactory.parseMap(Map.of(
+                        "endpoints", String.join(",", endpoints),
+                        "streaming", streaming,
+                        "max-batch-size", 1))
+                .atPath("home-automation.order-processor")
+                .withFallback(ConfigFactory.load());
+        system = ActorSystem.create(Behaviors.empty(), "balancing-test", config);
+        client = new OrderProcessorClient(system, new ProductCatalog(),
+                new GrpcMetrics(OrderProcessorGrpc.getServiceDescriptor()));
+
+        Product milk = new Product("milk", "Milk", new BigDecimal("1.99"), 1.0);
+        for (int i = 0; i < ORDERS; i++) {
+            client.processOrder(new Order(List.of(new OrderItem(milk, 1))))
+                    .toCompletableFuture()
+                    .get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private void assertEveryProcessorReceivedOrders() {
+        for (OrderProcessorServer server : servers) {
+            long received = server.getMetrics().getMethods().stream()
+                    .mapToLong(GrpcMetrics.MethodStats::getMessagesReceived)
+                    .sum();
+            assertTrue(received >= ORDERS / PROCESSORS / 2,
+                    "A processor received only " + received + " of " + ORDERS + " orders");
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
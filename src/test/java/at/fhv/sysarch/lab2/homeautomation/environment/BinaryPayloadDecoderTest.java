@@ -0,0 +1,113 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import at.fhv.sysarch.lab2.homeautomation.environment.telemetry.TemperatureBatch;
+import at.fhv.sysarch.lab2.homeautomation.environment.telemetry.WeatherBatch;
+import at.fhv.sysarch.lab2.homeautomation.environment.telemetry.WeatherCondition;
+import com.google.protobuf.MessageLite;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryPayloadDecoderTest {
+
+    private static final long START = 1_714_564_800_000L;
+
+    private static byte[] withHeader(MessageLite batch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryPayloadDecoder.MARKER);
+        out.write(BinaryPayloadDecoder.VERSION);
+        batch.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void readsBackTheTemperaturesOfABatch() throws IOException {
+        byte[] payload = withHeader(TemperatureBatch.newBuilder()
+                .setStartTimeMs(START)
+                .addOffsetsMs(0).addOffsetsMs(1_000).addOffsetsMs(2_500)
+                .addValues(21.5f).addValues(-3.25f).addValues(30.0f)
+                .build());
+
+        List<Long> timestamps = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        int count = BinaryPayloadDecoder.readTemperatures(payload, 0, (timestamp, value) -> {
+            timestamps.add(timestamp);
+            values.add(value);
+        });
+
+        assertTrue(BinaryPayloadDecoder.isBinary(payload));
+        assertEquals(3, count);
+        assertEquals(List.of(START, START + 1_000, START + 2_500), timestamps);
+        assertEquals(List.of(21.5, -3.25, 30.0), values);
+    }
+
+    @Test
+    void stampsBatchesWithoutStartTimeOnArrival() throws IOException {
+        byte[] payload = withHeader(TemperatureBatch.newBuilder().addValues(20.0f).build());
+
+        List<Long> timestamps = new ArrayList<>();
+        BinaryPayloadDecoder.readTemperatures(payload, START, (timestamp, value) -> timestamps.add(timestamp));
+
+        assertEquals(List.of(START), timestamps);
+    }
+
+    @Test
+    void readsUnpackedValuesBeforeOffsets() {
+        // values = 3 as fixed32 twice, then start_time_ms = 1000, then packed offsets_ms [0, 5]
+        byte[] payload = {
+                BinaryPayloadDecoder.MARKER, BinaryPayloadDecoder.VERSION,
+                0x1D, 0x00, 0x00, (byte) 0xA0, 0x41,
+                0x1D, 0x00, 0x00, (byte) 0xA8, 0x41,
+                0x08, (byte) 0xE8, 0x07,
+                0x12, 0x02, 0x00, 0x05
+        };
+
+        List<Long> timestamps = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        BinaryPayloadDecoder.readTemperatures(payload, 0, (timestamp, value) -> {
+            timestamps.add(timestamp);
+            values.add(value);
+        });
+
+        assertEquals(List.of(1_000L, 1_005L), timestamps);
+        assertEquals(List.of(20.0, 21.0), values);
+    }
+
+    @Test
+    void readsBackTheConditionsOfABatch() throws IOException {
+        byte[] payload = withHeader(WeatherBatch.newBuilder()
+                .setStartTimeMs(START)
+                .addOffsetsMs(0).addOffsetsMs(60_000)
+                .addConditions(WeatherCondition.SUNNY).addConditions(WeatherCondition.SNOWY)
+                .build());
+
+        List<EnvironmentSimulator.WeatherCondition> conditions = new ArrayList<>();
+        int count = BinaryPayloadDecoder.readConditions(payload, 0, (timestamp, condition) -> conditions.add(condition));
+
+        assertEquals(2, count);
+        assertEquals(List.of(EnvironmentSimulator.WeatherCondition.SUNNY, EnvironmentSimulator.WeatherCondition.SNOWY),
+                conditions);
+    }
+
+    @Test
+    void rejectsPayloadsItCannotRead() throws IOException {
+        byte[] json = "{\"value\":21.5}".getBytes();
+        byte[] unspecified = withHeader(WeatherBatch.newBuilder()
+                .addConditionsValue(WeatherCondition.WEATHER_CONDITION_UNSPECIFIED_VALUE)
+                .build());
+        byte[] nextVersion = {BinaryPayloadDecoder.MARKER, BinaryPayloadDecoder.VERSION + 1};
+
+        assertFalse(BinaryPayloadDecoder.isBinary(json));
+        assertThrows(IllegalArgumentException.class, () -> BinaryPayloadDecoder.readTemperatures(json, 0, (t, v) -> {}));
+        assertThrows(IllegalArgumentException.class, () -> BinaryPayloadDecoder.readConditions(unspecified, 0, (t, c) -> {}));
+        assertThrows(IllegalArgumentException.class, () -> BinaryPayloadDecoder.readTemperatures(nextVersion, 0, (t, v) -> {}));
+    }
+}
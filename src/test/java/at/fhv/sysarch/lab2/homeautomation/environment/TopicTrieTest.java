@@ -0,0 +1,67 @@
+package at.fhv.sysarch.lab2.homeautomation.environment;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TopicTrieTest {
+
+    private static TopicTrie<String> trie() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("home/+/temperature", "any-room");
+        trie.add("home/kitchen/temperature", "kitchen");
+        trie.add("home/#", "home");
+        trie.add("sensors/+/+/weather", "weather");
+        trie.add("#", "everything");
+        return trie;
+    }
+
+    @Test
+    void prefersTheMostSpecificFilter() {
+        TopicTrie<String> trie = trie();
+
+        assertEquals("kitchen", trie.match("home/kitchen/temperature").value);
+        assertEquals("any-room", trie.match("home/living-room/temperature").value);
+        assertEquals("home", trie.match("home/living-room/humidity").value);
+        assertEquals("everything", trie.match("garden/temperature").value);
+        assertEquals(5, trie.size());
+    }
+
+    @Test
+    void capturesTheLevelOfTheLastSingleLevelWildcard() {
+        TopicTrie<String> trie = trie();
+
+        assertEquals("living-room", trie.match("home/living-room/temperature").deviceId);
+        assertEquals("roof", trie.match("sensors/north/roof/weather").deviceId);
+        assertEquals("home/kitchen/temperature", trie.match("home/kitchen/temperature").deviceId);
+    }
+
+    @Test
+    void multiLevelWildcardMatchesItsParentLevel() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("home/#", "home");
+
+        assertEquals("home", trie.match("home").value);
+        assertNull(trie.match("garden"));
+    }
+
+    @Test
+    void wildcardsDoNotMatchSystemTopics() {
+        TopicTrie<String> trie = trie();
+        trie.add("$SYS/broker/uptime", "uptime");
+
+        assertNull(trie.match("$SYS/broker/load"));
+        assertEquals("uptime", trie.match("$SYS/broker/uptime").value);
+    }
+
+    @Test
+    void rejectsMalformedFilters() {
+        TopicTrie<String> trie = new TopicTrie<>();
+
+        assertThrows(IllegalArgumentException.class, () -> trie.add("", "empty"));
+        assertThrows(IllegalArgumentException.class, () -> trie.add("home/#/temperature", "inner"));
+        assertThrows(IllegalArgumentException.class, () -> trie.add("home/kit+chen", "partial"));
+    }
+}
@@ -0,0 +1,94 @@
+package at.fhv.sysarch.lab2.homeautomation.orderprocessor;
+
+import at.fhv.sysarch.lab2.homeautomation.devices.fridge.grpc.ReceiptResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderLedgerTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int RECEIPTS = 200;
+
+    @TempDir
+    Path directory;
+
+    private static ReceiptResponse receipt(int number) {
+        return ReceiptResponse.newBuilder()
+                .setOrderId("order-" + number)
+                .setTimestamp("2024-05-01T12:00:00")
+                .setTotalPrice(number + ".99")
+                .build();
+    }
+
+    private static void appendAll(OrderLedger ledger, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ledger.append(receipt(i)).join();
+        }
+    }
+
+    @Test
+    void findsEveryReceiptAfterReopening() throws Exception {
+        OrderLedger ledger = OrderLedger.open(directory, SEGMENT_SIZE);
+        appendAll(ledger, 0, RECEIPTS);
+        ledger.close();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.count() > 1, "receipts should span several segments");
+        }
+
+        OrderLedger reopened = OrderLedger.open(directory, SEGMENT_SIZE);
+        assertEquals(RECEIPTS, reopened.size());
+        for (int i = 0; i < RECEIPTS; i++) {
+            assertEquals(receipt(i), reopened.find("order-" + i).orElseThrow());
+        }
+        assertTrue(reopened.find("order-" + RECEIPTS).isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    void dropsATornRecordAndAppendsAfterTheLastValidOne() throws Exception {
+        OrderLedger ledger = OrderLedger.open(directory, SEGMENT_SIZE);
+        appendAll(ledger, 0, 10);
+        ledger.close();
+
+        tearTail(directory.resolve("0000000001.segment"));
+
+        OrderLedger recovered = OrderLedger.open(directory, SEGMENT_SIZE);
+        assertEquals(10, recovered.size());
+        appendAll(recovered, 10, 20);
+        recovered.close();
+
+        OrderLedger reopened = OrderLedger.open(directory, SEGMENT_SIZE);
+        assertEquals(20, reopened.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(receipt(i), reopened.find("order-" + i).orElseThrow());
+        }
+        reopened.close();
+    }
+
+    // Writes the header of a record whose payload never made it to disk after the last complete record
+    private static void tearTail(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer contents = ByteBuffer.allocate(SEGMENT_SIZE);
+            channel.read(contents, 0);
+            int offset = 0;
+            while (contents.getInt(offset) != 0) {
+                offset += Integer.BYTES * 2 + contents.getInt(offset);
+            }
+            ByteBuffer torn = ByteBuffer.allocate(Integer.BYTES * 2 + 3);
+            torn.putInt(40).putInt(0x12345678).put(new byte[]{1, 2, 3}).flip();
+            channel.write(torn, offset);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package at.fhv.sysarch.lab2.homeautomation.timeseries;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class GorillaBlockTest {
+
+    @Test
+    void readsBackEverySampleBitForBit() {
+        long[] timestamps = new long[1_000];
+        double[] values = new double[timestamps.length];
+        Random random = new Random(42);
+        long timestamp = 1_714_564_800_000L;
+        for (int i = 0; i < timestamps.length; i++) {
+            // Regular steps mixed with jitter and jumps, so every delta-of-delta width is written
+            timestamp += switch (i % 7) {
+                case 0 -> 1_000;
+                case 1 -> 1_000 + random.nextInt(50);
+                case 2 -> random.nextInt(4_000);
+                case 3 -> 100_000 + random.nextInt(1_000_000);
+                case 4 -> 1L << 40;
+                default -> 0;
+            };
+            timestamps[i] = timestamp;
+            values[i] = switch (i % 5) {
+                case 0 -> 21.5;
+                case 1 -> 21.5 + random.nextGaussian();
+                case 2 -> -random.nextDouble() * 1e12;
+                case 3 -> Double.NaN;
+                default -> values[i - 1];
+            };
+        }
+
+        GorillaBlock block = new GorillaBlock(timestamps.length);
+        for (int i = 0; i < timestamps.length; i++) {
+            block.append(timestamps[i], values[i]);
+        }
+        block.seal();
+
+        List<long[]> read = new ArrayList<>();
+        block.forEach(Long.MIN_VALUE, Long.MAX_VALUE,
+                (t, v) -> read.add(new long[]{t, Double.doubleToRawLongBits(v)}));
+
+        assertEquals(timestamps.length, read.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], read.get(i)[0], "timestamp of sample " + i);
+            assertEquals(Double.doubleToRawLongBits(values[i]), read.get(i)[1], "value of sample " + i);
+        }
+    }
+
+    @Test
+    void readsOnlyTheRequestedRange() {
+        GorillaBlock block = new GorillaBlock(100);
+        for (int i = 0; i < 100; i++) {
+            block.append(i * 10L, i);
+        }
+
+        List<Long> read = new ArrayList<>();
+        block.forEach(200, 250, (t, v) -> read.add(t));
+
+        assertEquals(List.of(200L, 210L, 220L, 230L, 240L, 250L), read);
+    }
+}
@@ -0,0 +1,27 @@
+package at.fhv.sysarch.lab2.homeautomation.timeseries;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeSeriesTest {
+
+    @Test
+    void rejectsSamplesOlderThanTheLastOne() {
+        TimeSeries series = new TimeSeries("temperature/test", 4, Long.MAX_VALUE, List.of());
+
+        assertTrue(series.record(1_000, 20.0));
+        assertTrue(series.record(2_000, 21.0));
+        assertFalse(series.record(1_500, 22.0));
+        assertTrue(series.record(2_000, 23.0));
+
+        List<TimeSeries.Sample> samples = series.range(0, 10_000);
+        assertEquals(List.of(1_000L, 2_000L, 2_000L), samples.stream().map(s -> s.timestampMillis).toList());
+        assertEquals(1, series.lateSamples());
+        assertEquals(3, series.size());
+    }
+}